@@ -0,0 +1,177 @@
+package continuing.education.distributedsystems.http;
+
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Value;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Caps the number of requests in flight to a single destination, and moves that cap based on how the destination is
+ * responding (AIMD, the same scheme TCP uses for its congestion window):
+ *
+ * additive increase: each successful response while the limit is actually being used raises it by one.
+ * multiplicative decrease: a failure, or a response while the destination is slowing down, cuts it by
+ * {@code backoffRatio}, at most once per round trip. "Slowing down" means the average RTT over the last few responses
+ * has drifted more than {@code rttTolerance} times above the long running average. Comparing averages rather than
+ * single samples against the fastest one seen keeps workers whose service times are merely spread out (but not getting
+ * worse) from being throttled down to nothing.
+ *
+ * As with TCP, a whole window of requests sent at the old limit carries the same congestion signal, and cutting once
+ * per response would compound it: a burst of 20 slow responses would take a limit of 20 down to 1. So a response only
+ * counts towards another decrease if its request was sent after the last one; the rest were sent at a limit that has
+ * already been cut.
+ *
+ * A slow worker therefore gets fewer concurrent requests, instead of queueing everything we throw at it and dragging
+ * the tail latency of every scatter-gather it takes part in up with it.
+ *
+ * The permit count is a CAS loop on an {@code AtomicInteger}, so the common path takes no locks. Once the limit is
+ * reached, the request is either failed immediately with a {@code RejectedExecutionException}, or parked in a queue
+ * and handed the next permit that is released, depending on {@code policy}.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class AdaptiveConcurrencyLimiter {
+
+    public enum OverLimitPolicy {
+        QUEUE,
+        FAIL_FAST
+    }
+
+    @Value
+    @Builder
+    public static class Settings {
+        @Builder.Default int initialLimit = 20;
+        @Builder.Default int minLimit = 1;
+        @Builder.Default int maxLimit = 200;
+        @Builder.Default double backoffRatio = 0.9;
+        @Builder.Default double rttTolerance = 2.0;
+        // roughly how many samples the short and long running RTT averages cover
+        @Builder.Default int shortRttWindow = 10;
+        @Builder.Default int longRttWindow = 500;
+        @Builder.Default int maxQueued = 1_000;
+        @Builder.Default OverLimitPolicy policy = OverLimitPolicy.QUEUE;
+
+        public static Settings defaults() {
+            return Settings.builder().build();
+        }
+    }
+
+    Settings settings;
+    AtomicInteger limit;
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger queued = new AtomicInteger();
+    AtomicLong shortRttNanos = new AtomicLong();
+    AtomicLong longRttNanos = new AtomicLong();
+    AtomicLong lastDecreaseNanos = new AtomicLong(System.nanoTime());
+    LongAdder rejected = new LongAdder();
+    Queue<CompletableFuture<Void>> waiters = new ConcurrentLinkedQueue<>();
+
+    public AdaptiveConcurrencyLimiter(final Settings settings) {
+        this.settings = settings;
+        this.limit = new AtomicInteger(settings.getInitialLimit());
+    }
+
+    /**
+     * @return a future that completes once a permit is held. Every completed acquire must be paired with exactly one
+     * {@link #release}.
+     */
+    public CompletableFuture<Void> acquire() {
+        if(tryAcquire()) return CompletableFuture.completedFuture(null);
+
+        if(settings.getPolicy() == OverLimitPolicy.FAIL_FAST || queued.incrementAndGet() > settings.getMaxQueued()) {
+            if(settings.getPolicy() == OverLimitPolicy.QUEUE) queued.decrementAndGet();
+            rejected.increment();
+            return CompletableFuture.failedFuture(new RejectedExecutionException(
+                    String.format("Concurrency limit of %d reached", limit.get())));
+        }
+
+        val waiter = new CompletableFuture<Void>();
+        waiters.add(waiter);
+        // a permit may have been released between the failed tryAcquire and the add, with nobody in the queue to take it
+        drain();
+        return waiter;
+    }
+
+    /**
+     * @param rttNanos how long the request took
+     * @param success false if the request failed or the destination signalled it was overloaded
+     */
+    public void release(final long rttNanos, final boolean success) {
+        adjustLimit(rttNanos, success);
+        inFlight.decrementAndGet();
+        drain();
+    }
+
+    public int getLimit() {
+        return limit.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public int getQueued() {
+        return queued.get();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private boolean tryAcquire() {
+        while(true) {
+            val current = inFlight.get();
+            if(current >= limit.get()) return false;
+            if(inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    private void drain() {
+        while(!waiters.isEmpty() && tryAcquire()) {
+            val waiter = waiters.poll();
+            if(isNull(waiter)) {
+                // somebody else drained it first, give the permit back
+                inFlight.decrementAndGet();
+                return;
+            }
+            queued.decrementAndGet();
+            if(!waiter.complete(null)) {
+                // the waiter was cancelled, so nobody will release this permit
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private void adjustLimit(final long rttNanos, final boolean success) {
+        val shortRtt = average(shortRttNanos, rttNanos, settings.getShortRttWindow());
+        val longRtt = average(longRttNanos, rttNanos, settings.getLongRttWindow());
+
+        val congested = !success || shortRtt > longRtt * settings.getRttTolerance();
+        if(congested) {
+            val now = System.nanoTime();
+            val lastDecrease = lastDecreaseNanos.get();
+            // only a request sent after the last decrease can call for another, and only one of those wins the CAS
+            if(now - rttNanos - lastDecrease > 0 && lastDecreaseNanos.compareAndSet(lastDecrease, now)) {
+                limit.updateAndGet(current -> Math.max(settings.getMinLimit(), (int) (current * settings.getBackoffRatio())));
+            }
+        } else if(inFlight.get() * 2 >= limit.get()) {
+            // only grow while the limit is actually being used, otherwise a quiet period would inflate it without bound
+            limit.updateAndGet(current -> Math.min(settings.getMaxLimit(), current + 1));
+        }
+    }
+
+    // exponentially weighted moving average, seeded with the first sample
+    private static long average(final AtomicLong average, final long sample, final int window) {
+        return average.accumulateAndGet(sample, (current, next) -> current == 0 ? next : current + (next - current) / window);
+    }
+}
@@ -0,0 +1,324 @@
+package continuing.education.distributedsystems.http;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Body compression shared by {@link WebClient} and {@link WebServer}, negotiated the usual HTTP way:
+ *
+ * Responses: the client lists what it can decode in {@code Accept-Encoding}, and the server picks one of those and
+ * labels the body with {@code Content-Encoding}.
+ *
+ * Requests: HTTP has no standard way for a client to know up front that a server will accept a compressed body, so
+ * the server advertises what it can decode with an {@code Accept-Encoding} header on its responses. The client only
+ * starts compressing requests to a given server once it has seen that header from it.
+ *
+ * Bodies below {@code threshold} bytes are always sent raw, since for small payloads the gzip framing and CPU time cost
+ * more than the bandwidth saved.
+ *
+ * {@code GZIPOutputStream} and friends allocate a fresh {@code Deflater} per stream, and each one holds a sizeable
+ * chunk of native zlib state. Instead each thread keeps one {@code Deflater}/{@code Inflater} per format and
+ * {@code reset()}s it between bodies. The gzip header and trailer are written by hand around a raw ("nowrap") deflate
+ * stream so that the gzip format can share the pooled instances too.
+ *
+ * A compressed body can inflate to a thousand times its size, so decompressing takes a limit on the inflated length,
+ * and gives up with a {@link TooLargeException} as soon as it is passed rather than after the memory is gone. Bodies
+ * can be inflated straight off a stream, so the compressed form isn't buffered either.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class HttpCompression {
+
+    public static final int DEFAULT_THRESHOLD = 1024;
+    public static final int DEFAULT_MAX_INFLATED = 16 * 1024 * 1024;
+    public static final HttpCompression DISABLED = new HttpCompression(List.of(), Integer.MAX_VALUE);
+
+    static final String ACCEPT_ENCODING = "Accept-Encoding";
+    static final String CONTENT_ENCODING = "Content-Encoding";
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_SIZE = 8;
+    private static final int FHCRC = 2, FEXTRA = 4, FNAME = 8, FCOMMENT = 16;
+
+    private static final ThreadLocal<Deflater> GZIP_DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+    private static final ThreadLocal<Deflater> ZLIB_DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, false));
+    private static final ThreadLocal<Inflater> GZIP_INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<Inflater> ZLIB_INFLATER = ThreadLocal.withInitial(() -> new Inflater(false));
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private static final ThreadLocal<byte[]> INPUT_BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    public enum Encoding {
+        GZIP("gzip"),
+        // "deflate" in HTTP means the zlib wrapped format, not a raw deflate stream
+        DEFLATE("deflate");
+
+        final String token;
+
+        Encoding(final String token) {
+            this.token = token;
+        }
+
+        public String token() {
+            return token;
+        }
+
+        /**
+         * @return empty for an identity (uncompressed) body
+         * @throws IllegalArgumentException if the encoding is not one we can decode
+         */
+        public static Optional<Encoding> fromContentEncoding(final String header) {
+            if(isNull(header) || header.isBlank() || header.trim().equalsIgnoreCase("identity")) return Optional.empty();
+            for(val encoding : values()) {
+                if(encoding.token.equalsIgnoreCase(header.trim())) return Optional.of(encoding);
+            }
+            throw new IllegalArgumentException("Unsupported Content-Encoding: " + header);
+        }
+    }
+
+    // in order of preference
+    List<Encoding> supported;
+    int threshold;
+
+    public HttpCompression(final List<Encoding> supported, final int threshold) {
+        this.supported = List.copyOf(supported);
+        this.threshold = threshold;
+    }
+
+    public static HttpCompression of(final Encoding... supported) {
+        return new HttpCompression(List.of(supported), DEFAULT_THRESHOLD);
+    }
+
+    public boolean isEnabled() {
+        return !supported.isEmpty();
+    }
+
+    public boolean shouldCompress(final int length) {
+        return isEnabled() && length >= threshold;
+    }
+
+    /**
+     * @return the value of the {@code Accept-Encoding} header to send, or null if compression is disabled
+     */
+    public String acceptEncoding() {
+        if(!isEnabled()) return null;
+        val sb = new StringBuilder();
+        for(val encoding : supported) {
+            if(sb.length() > 0) sb.append(", ");
+            sb.append(encoding.token);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Picks our most preferred encoding that the peer listed in its {@code Accept-Encoding} header. Entries with
+     * {@code q=0} are explicit refusals and are skipped.
+     */
+    public Optional<Encoding> negotiate(final String acceptEncodingHeader) {
+        if(isNull(acceptEncodingHeader) || !isEnabled()) return Optional.empty();
+        for(val encoding : supported) {
+            for(val entry : acceptEncodingHeader.split(",")) {
+                val parts = entry.split(";");
+                if(parts[0].trim().equalsIgnoreCase(encoding.token) && !refused(parts)) {
+                    return Optional.of(encoding);
+                }
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static boolean refused(final String[] parts) {
+        for(int i = 1; i < parts.length; i++) {
+            val param = parts[i].trim();
+            if(param.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(param.substring(2)) <= 0;
+                } catch (final NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static byte[] compress(final byte[] data, final int offset, final int length, final Encoding encoding) {
+        val out = new ByteArrayOutputStream(Math.max(64, length / 4));
+        try {
+            compress(data, offset, length, encoding, out);
+        } catch (final IOException e) {
+            // ByteArrayOutputStream doesn't throw
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Streams the compressed form of {@code data} into {@code out} without buffering the whole compressed body first.
+     * {@code out} is not closed.
+     */
+    public static void compress(final byte[] data, final int offset, final int length, final Encoding encoding, final OutputStream out) throws IOException {
+        val deflater = (encoding == Encoding.GZIP ? GZIP_DEFLATER : ZLIB_DEFLATER).get();
+        try {
+            if(encoding == Encoding.GZIP) out.write(GZIP_HEADER);
+
+            // a DeflaterOutputStream handed its Deflater never end()s it, which is what lets us reuse it. It is also
+            // never closed here, only finished, so `out` stays open for the trailer and whatever the caller writes next.
+            val deflaterOut = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            deflaterOut.write(data, offset, length);
+            deflaterOut.finish();
+
+            if(encoding == Encoding.GZIP) {
+                val crc = new CRC32();
+                crc.update(data, offset, length);
+                writeIntLE(out, (int) crc.getValue());
+                writeIntLE(out, length);
+            }
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Thrown when a body inflates to more than the caller was willing to take.
+     */
+    public static class TooLargeException extends ZipException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(final String message) {
+            super(message);
+        }
+    }
+
+    public static byte[] decompress(final byte[] data, final Encoding encoding) throws IOException {
+        return decompress(data, encoding, DEFAULT_MAX_INFLATED);
+    }
+
+    /**
+     * @throws TooLargeException if the body inflates to more than {@code maxLength} bytes
+     * @throws ZipException      if the body is truncated or corrupt
+     */
+    public static byte[] decompress(final byte[] data, final Encoding encoding, final int maxLength) throws IOException {
+        return decompress(new ByteArrayInputStream(data), encoding, maxLength);
+    }
+
+    /**
+     * Inflates the body as it is read from {@code in}, so only the inflated form is ever held in memory, and that only
+     * up to {@code maxLength} bytes. Anything after the end of the compressed body is left unread. {@code in} is not
+     * closed.
+     *
+     * @throws TooLargeException if the body inflates to more than {@code maxLength} bytes
+     * @throws ZipException      if the body is truncated or corrupt
+     */
+    public static byte[] decompress(final InputStream in, final Encoding encoding, final int maxLength) throws IOException {
+        val inflater = (encoding == Encoding.GZIP ? GZIP_INFLATER : ZLIB_INFLATER).get();
+        val input = INPUT_BUFFER.get();
+        val buffer = BUFFER.get();
+        try {
+            if(encoding == Encoding.GZIP) skipGzipHeader(in);
+
+            val crc = new CRC32();
+            val out = new ByteArrayOutputStream(BUFFER_SIZE);
+            int inputLength = 0;
+            while(!inflater.finished()) {
+                if(inflater.needsInput()) {
+                    inputLength = in.read(input);
+                    if(inputLength < 0) throw new ZipException("Truncated " + encoding.token + " body");
+                    inflater.setInput(input, 0, inputLength);
+                    continue;
+                }
+                if(inflater.needsDictionary()) throw new ZipException("Corrupt " + encoding.token + " body: needs a preset dictionary");
+
+                val n = inflater.inflate(buffer);
+                if(out.size() + n > maxLength) {
+                    throw new TooLargeException(encoding.token + " body inflates to more than " + maxLength + " bytes");
+                }
+                out.write(buffer, 0, n);
+                crc.update(buffer, 0, n);
+            }
+
+            if(encoding == Encoding.GZIP) {
+                // the trailer starts with whatever the inflater was handed but didn't need
+                val trailer = new byte[GZIP_TRAILER_SIZE];
+                val buffered = Math.min(inflater.getRemaining(), GZIP_TRAILER_SIZE);
+                System.arraycopy(input, inputLength - inflater.getRemaining(), trailer, 0, buffered);
+                readFully(in, trailer, buffered, "Truncated gzip trailer");
+                if(readIntLE(trailer, 0) != (int) crc.getValue() || readIntLE(trailer, 4) != out.size()) {
+                    throw new ZipException("Corrupt gzip trailer");
+                }
+            }
+            return out.toByteArray();
+        } catch (final DataFormatException e) {
+            throw new ZipException("Corrupt " + encoding.token + " body: " + e.getMessage());
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    private static void skipGzipHeader(final InputStream in) throws IOException {
+        val header = new byte[GZIP_HEADER.length];
+        readFully(in, header, 0, "Not in gzip format");
+        if(header[0] != GZIP_HEADER[0] || header[1] != GZIP_HEADER[1] || header[2] != Deflater.DEFLATED) {
+            throw new ZipException("Not in gzip format");
+        }
+        val flags = header[3];
+        if((flags & FEXTRA) != 0) {
+            readFully(in, header, 0, 2, "Truncated gzip header");
+            skipFully(in, (header[0] & 0xff) | (header[1] & 0xff) << 8);
+        }
+        if((flags & FNAME) != 0) skipZeroTerminated(in);
+        if((flags & FCOMMENT) != 0) skipZeroTerminated(in);
+        if((flags & FHCRC) != 0) skipFully(in, 2);
+    }
+
+    private static void skipZeroTerminated(final InputStream in) throws IOException {
+        for(int b = in.read(); b != 0; b = in.read()) {
+            if(b < 0) throw new ZipException("Truncated gzip header");
+        }
+    }
+
+    private static void skipFully(final InputStream in, final int length) throws IOException {
+        for(int i = 0; i < length; i++) {
+            if(in.read() < 0) throw new ZipException("Truncated gzip header");
+        }
+    }
+
+    private static void readFully(final InputStream in, final byte[] b, final int offset, final String truncated) throws IOException {
+        readFully(in, b, offset, b.length - offset, truncated);
+    }
+
+    private static void readFully(final InputStream in, final byte[] b, int offset, int length, final String truncated) throws IOException {
+        while(length > 0) {
+            val n = in.read(b, offset, length);
+            if(n < 0) throw new ZipException(truncated);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private static void writeIntLE(final OutputStream out, final int value) throws IOException {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+
+    private static int readIntLE(final byte[] data, final int pos) {
+        return (data[pos] & 0xff) | (data[pos + 1] & 0xff) << 8 | (data[pos + 2] & 0xff) << 16 | (data[pos + 3] & 0xff) << 24;
+    }
+}
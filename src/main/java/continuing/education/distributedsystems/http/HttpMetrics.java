@@ -0,0 +1,96 @@
+package continuing.education.distributedsystems.http;
+
+import continuing.education.distributedsystems.metrics.LatencyHistogram;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters and latency histograms, broken down by endpoint (a worker's host:port on the client side, a route
+ * on the server side). Everything on the recording path is a {@code LongAdder}, an atomic or a
+ * {@link LatencyHistogram}, so it can be updated from any number of request threads without contention.
+ *
+ * {@link #render()} writes the Prometheus text format, which is also readable as is.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class HttpMetrics {
+
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    String scope;
+    Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    public HttpMetrics(final String scope) {
+        this.scope = scope;
+    }
+
+    public Endpoint forEndpoint(final String endpoint) {
+        return endpoints.computeIfAbsent(endpoint, Endpoint::new);
+    }
+
+    public Map<String, Endpoint> getEndpoints() {
+        return new TreeMap<>(endpoints);
+    }
+
+    public String render() {
+        val sb = new StringBuilder();
+        for(val endpoint : getEndpoints().values()) {
+            val labels = String.format("scope=\"%s\",endpoint=\"%s\"", scope, endpoint.getName());
+            line(sb, "http_requests_total", labels, endpoint.getRequests().sum());
+            line(sb, "http_errors_total", labels, endpoint.getErrors().sum());
+            line(sb, "http_bytes_sent_total", labels, endpoint.getBytesSent().sum());
+            line(sb, "http_bytes_received_total", labels, endpoint.getBytesReceived().sum());
+            line(sb, "http_in_flight", labels, endpoint.getInFlight().get());
+            for(val quantile : QUANTILES) {
+                line(sb, "http_latency_us", labels + ",quantile=\"" + quantile + "\"",
+                        endpoint.getLatency().getValueAtPercentile(Double.parseDouble(quantile) * 100));
+            }
+            line(sb, "http_latency_us_max", labels, endpoint.getLatency().getMaxMicros());
+        }
+        return sb.toString();
+    }
+
+    private static void line(final StringBuilder sb, final String name, final String labels, final long value) {
+        sb.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    @Getter
+    @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+    public static class Endpoint {
+        String name;
+        LatencyHistogram latency = new LatencyHistogram();
+        LongAdder requests = new LongAdder();
+        LongAdder errors = new LongAdder();
+        LongAdder bytesSent = new LongAdder();
+        LongAdder bytesReceived = new LongAdder();
+        AtomicInteger inFlight = new AtomicInteger();
+
+        Endpoint(final String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the start timestamp to hand back to {@link #end}
+         */
+        public long start() {
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        public void end(final long startNanos, final long sent, final long received, final boolean error) {
+            latency.recordNanos(System.nanoTime() - startNanos);
+            inFlight.decrementAndGet();
+            requests.increment();
+            if(error) errors.increment();
+            bytesSent.add(sent);
+            bytesReceived.add(received);
+        }
+    }
+}
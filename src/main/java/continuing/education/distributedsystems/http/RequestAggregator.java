@@ -1,35 +1,80 @@
 package continuing.education.distributedsystems.http;
 
 import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.experimental.FieldDefaults;
 import lombok.val;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
 import static java.util.stream.Collectors.toList;
 
+/**
+ * The per worker breakdown of the scatter-gather lives in the {@link WebClient}'s metrics. The aggregator's own
+ * metrics time each scatter-gather as a whole, which is what callers actually wait on: the slowest worker plus
+ * whatever it costs to fan out and join.
+ */
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
 public class RequestAggregator {
 
-    WebClient webClient;
+    private static final String SCATTER_GATHER = "scatter_gather";
+
+    @Getter WebClient webClient;
+    @Getter HttpMetrics metrics = new HttpMetrics("aggregator");
 
     public RequestAggregator() {
-        this.webClient = new WebClient();
+        this(new WebClient());
+    }
+
+    public RequestAggregator(final WebClient webClient) {
+        this.webClient = webClient;
     }
 
     public List<String> sendTasksToWorkers(final List<String> workerAddresses, final List<String> tasks) {
-        final CompletableFuture<String>[] futures = new CompletableFuture[workerAddresses.size()];
+        // explicit charset, so the bytes on the wire don't depend on the platform default of whichever box we run on
+        val payloads = tasks.stream().map(task -> task.getBytes(StandardCharsets.UTF_8)).collect(toList());
+        return sendRawTasksToWorkers(workerAddresses, payloads).stream()
+                .map(result -> new String(result, StandardCharsets.UTF_8))
+                .collect(toList());
+    }
+
+    /**
+     * Same scatter-gather as above, but the tasks and results are passed through as raw bytes, so nothing is
+     * transcoded or copied on the way to and from the workers.
+     */
+    public List<byte[]> sendRawTasksToWorkers(final List<String> workerAddresses, final List<byte[]> tasks) {
+        return sendRawTasksToWorkersAsync(workerAddresses, tasks).join();
+    }
+
+    /**
+     * Non-blocking form of {@link #sendRawTasksToWorkers}, for callers that can't afford to park a thread per
+     * scatter-gather, e.g. a load generator issuing them at a fixed rate.
+     */
+    public CompletableFuture<List<byte[]>> sendRawTasksToWorkersAsync(final List<String> workerAddresses, final List<byte[]> tasks) {
+        val endpoint = metrics.forEndpoint(SCATTER_GATHER);
+        val start = endpoint.start();
+        val futures = new ArrayList<CompletableFuture<byte[]>>(workerAddresses.size());
 
+        long sent = 0;
         for(int i = 0; i < workerAddresses.size(); i++) {
-            val addy = workerAddresses.get(i);
-            val task = tasks.get(i);
-            futures[i] = webClient.sendTask(addy, task.getBytes());
+            sent += tasks.get(i).length;
+            futures.add(webClient.sendTaskForBytes(workerAddresses.get(i), tasks.get(i)));
         }
 
-        return Stream.of(futures).map(CompletableFuture::join).collect(Collectors.toList());
+        val bytesSent = sent;
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+                .thenApply(ignored -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()))
+                .whenComplete((results, error) -> {
+                    // like the bytes sent, the payloads as the workers returned them, before any compression
+                    val received = isNull(error) ? results.stream().mapToLong(result -> result.length).sum() : 0;
+                    endpoint.end(start, bytesSent, received, nonNull(error));
+                });
     }
 }
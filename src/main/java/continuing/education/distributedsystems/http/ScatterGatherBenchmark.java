@@ -0,0 +1,207 @@
+package continuing.education.distributedsystems.http;
+
+import continuing.education.distributedsystems.metrics.LatencyHistogram;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Runs a whole scatter-gather cluster inside one JVM: {@code workers} {@link WebServer}s on loopback ports, each taking
+ * a random service time per task, and a {@link RequestAggregator} sending every worker one task per scatter-gather.
+ *
+ * The load is open loop: scatter-gathers are started on a fixed schedule ({@code rate} per second) whether or not the
+ * previous ones have finished, the way independent users would send them. A closed loop generator, which waits for
+ * each response before sending the next request, quietly sends less when the system slows down, so the slow periods
+ * end up under-represented in the results ("coordinated omission"). For the same reason, latency is measured from
+ * when each scatter-gather was *supposed* to start, not from when the generator got round to sending it.
+ *
+ * Arguments are key=value pairs, all optional:
+ *   workers=4 rate=200 seconds=10 warmup=3 payload=1024 service=exponential serviceMicros=1000 compression=false
+ * where service is one of constant, uniform, exponential or bimodal.
+ *
+ * Payloads are text made of words picked at random from a small vocabulary, which compresses a few times over, like
+ * most real task payloads do; random bytes wouldn't compress at all, and compression=true would only measure its cost.
+ *
+ * ./gradlew build, then
+ * java -cp build/classes/java/main:<runtime classpath> continuing.education.distributedsystems.http.ScatterGatherBenchmark rate=500
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ScatterGatherBenchmark {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+    private static final String[] WORDS = {"task", "worker", "result", "shard", "leader", "request", "latency",
+            "status", "pending", "done", "node", "cluster", "0", "1", "42", "1024", "true", "false", "id", "value"};
+
+    public enum ServiceTime {
+        CONSTANT {
+            long sampleNanos(final long meanNanos) {
+                return meanNanos;
+            }
+        },
+        UNIFORM {
+            long sampleNanos(final long meanNanos) {
+                return ThreadLocalRandom.current().nextLong(2 * meanNanos + 1);
+            }
+        },
+        EXPONENTIAL {
+            long sampleNanos(final long meanNanos) {
+                return (long) (-Math.log(1 - ThreadLocalRandom.current().nextDouble()) * meanNanos);
+            }
+        },
+        // mostly fast with an occasional very slow task (GC pause, cold cache...), which is what hurts a scatter-gather,
+        // since every request waits on its slowest worker. Overall mean stays at meanNanos.
+        BIMODAL {
+            long sampleNanos(final long meanNanos) {
+                return ThreadLocalRandom.current().nextDouble() < 0.01 ? meanNanos * 10 : (long) (meanNanos * (1 - 0.1) / 0.99);
+            }
+        };
+
+        abstract long sampleNanos(long meanNanos);
+    }
+
+    int workers;
+    double rate;
+    long seconds;
+    long warmupSeconds;
+    int payloadBytes;
+    ServiceTime serviceTime;
+    long serviceNanos;
+    boolean compression;
+
+    public ScatterGatherBenchmark(final Map<String, String> options) {
+        this.workers = Integer.parseInt(options.getOrDefault("workers", "4"));
+        this.rate = Double.parseDouble(options.getOrDefault("rate", "200"));
+        this.seconds = Long.parseLong(options.getOrDefault("seconds", "10"));
+        this.warmupSeconds = Long.parseLong(options.getOrDefault("warmup", "3"));
+        this.payloadBytes = Integer.parseInt(options.getOrDefault("payload", "1024"));
+        this.serviceTime = ServiceTime.valueOf(options.getOrDefault("service", "exponential").toUpperCase());
+        this.serviceNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(options.getOrDefault("serviceMicros", "1000")));
+        this.compression = Boolean.parseBoolean(options.getOrDefault("compression", "false"));
+    }
+
+    public static void main(final String[] args) throws IOException {
+        // see WebServer: without it, every response waits ~40ms on a delayed ACK. Has to be set before any server starts.
+        if(isNull(System.getProperty("sun.net.httpserver.nodelay"))) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        val options = new HashMap<String, String>();
+        for(val arg : args) {
+            val kvp = arg.split("=", 2);
+            options.put(kvp[0], kvp[1]);
+        }
+        new ScatterGatherBenchmark(options).run();
+    }
+
+    public void run() throws IOException {
+        val httpCompression = compression ? HttpCompression.of(HttpCompression.Encoding.GZIP) : HttpCompression.DISABLED;
+
+        val servers = new ArrayList<WebServer>(workers);
+        val addresses = new ArrayList<String>(workers);
+        for(int i = 0; i < workers; i++) {
+            val server = new WebServer(0, this::serve, httpCompression);
+            server.startServer();
+            servers.add(server);
+            addresses.add(String.format("http://127.0.0.1:%d/task", server.getPort()));
+        }
+
+        val payload = textPayload(payloadBytes);
+        val tasks = Collections.nCopies(workers, payload);
+        val aggregator = new RequestAggregator(new WebClient(httpCompression));
+
+        try {
+            System.out.printf("warming up for %ds%n", warmupSeconds);
+            drive(aggregator, addresses, tasks, warmupSeconds);
+
+            System.out.printf("%d workers, %.0f scatter-gathers/s, %s service time with %dus mean, %d byte payloads, compression %s%n",
+                    workers, rate, serviceTime.name().toLowerCase(), TimeUnit.NANOSECONDS.toMicros(serviceNanos), payloadBytes, compression);
+            val result = drive(aggregator, addresses, tasks, seconds);
+            report(result, aggregator);
+        } finally {
+            servers.forEach(WebServer::stopServer);
+        }
+    }
+
+    private static byte[] textPayload(final int length) {
+        val random = ThreadLocalRandom.current();
+        val sb = new StringBuilder(length + 16);
+        while(sb.length() < length) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(8) == 0 ? '\n' : ' ');
+        }
+        sb.setLength(length);
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private byte[] serve(final byte[] task) {
+        val deadline = System.nanoTime() + serviceTime.sampleNanos(serviceNanos);
+        // parkNanos can return early, so keep going until the deadline actually passes
+        for(long remaining = deadline - System.nanoTime(); remaining > 0; remaining = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(remaining);
+        }
+        return task;
+    }
+
+    private Result drive(final RequestAggregator aggregator, final List<String> addresses, final List<byte[]> tasks, final long durationSeconds) {
+        val result = new Result();
+        val intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        val total = (long) (rate * durationSeconds);
+        val start = System.nanoTime();
+
+        for(long i = 0; i < total; i++) {
+            val intended = start + i * intervalNanos;
+            for(long wait = intended - System.nanoTime(); wait > 0; wait = intended - System.nanoTime()) {
+                LockSupport.parkNanos(wait);
+            }
+
+            aggregator.sendRawTasksToWorkersAsync(addresses, tasks).whenComplete((responses, error) -> {
+                result.latency.recordNanos(System.nanoTime() - intended);
+                if(nonNull(error)) result.errors.increment();
+            });
+        }
+
+        // give the stragglers up to ten seconds to come back before tallying up
+        val drainDeadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while(result.latency.getCount() < total && System.nanoTime() < drainDeadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        result.sent = total;
+        return result;
+    }
+
+    private void report(final Result result, final RequestAggregator aggregator) {
+        val completed = result.latency.getCount();
+        System.out.printf("sent %d, completed %d, errors %d, throughput %.1f/s%n",
+                result.sent, completed, result.errors.sum(), completed / (result.elapsedNanos / 1e9));
+        System.out.printf("latency (us, from intended start) mean %.0f", result.latency.getMeanMicros());
+        for(val percentile : PERCENTILES) {
+            System.out.printf(" p%s %d", percentile, result.latency.getValueAtPercentile(percentile));
+        }
+        System.out.printf(" max %d%n", result.latency.getMaxMicros());
+
+        aggregator.getWebClient().getConcurrencyLimiters().forEach((worker, limiter) ->
+                System.out.printf("  %s limit %d, rejected %d%n", worker, limiter.getLimit(), limiter.getRejected()));
+    }
+
+    @FieldDefaults(level = AccessLevel.PRIVATE)
+    private static class Result {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        long sent;
+        long elapsedNanos;
+    }
+}
@@ -1,30 +1,213 @@
 package continuing.education.distributedsystems.http;
 
 import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.experimental.FieldDefaults;
 import lombok.val;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Payloads are treated as opaque bytes. {@code BodyHandlers.ofString()} would decode every response into a
+ * {@code String} (one copy to collect the body, another to transcode it), which is wasted work when the caller only
+ * wants to forward the bytes on. The {@code String} variants remain for convenience, but the byte oriented ones
+ * are what the aggregator uses.
+ *
+ * With compression enabled, byte[] and ByteBuffer bodies are compressed and decompressed as described in
+ * {@link HttpCompression}. The stream variant is left alone, since it exists for bodies that shouldn't be buffered.
+ *
+ * Every destination (host:port) gets its own {@link AdaptiveConcurrencyLimiter}, so one overloaded worker can't soak up
+ * an unbounded number of our requests. {@link #getConcurrencyLimiters()} exposes them for monitoring.
+ *
+ * Latency, bytes on the wire, errors and in-flight counts are also kept per destination, in {@link #getMetrics()}.
+ * Latency is measured from the call, so it includes any time spent queued behind the concurrency limit.
+ *
+ * A response with an error status (400 and up) fails the returned future with a {@link StatusException}.
+ */
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
 public class WebClient {
 
     HttpClient httpClient;
+    HttpCompression compression;
+    // what each server (by host:port) has told us it can decode, learned from its responses
+    Map<String, HttpCompression.Encoding> requestEncodings = new ConcurrentHashMap<>();
+    AdaptiveConcurrencyLimiter.Settings limiterSettings;
+    Map<String, AdaptiveConcurrencyLimiter> limiters = new ConcurrentHashMap<>();
+    @Getter HttpMetrics metrics = new HttpMetrics("client");
 
     public WebClient() {
+        this(HttpCompression.DISABLED);
+    }
+
+    public WebClient(final HttpCompression compression) {
+        this(compression, AdaptiveConcurrencyLimiter.Settings.defaults());
+    }
+
+    public WebClient(final HttpCompression compression, final AdaptiveConcurrencyLimiter.Settings limiterSettings) {
         this.httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+        this.compression = compression;
+        this.limiterSettings = limiterSettings;
+    }
+
+    /**
+     * @return the limiter of every destination contacted so far, keyed by host:port
+     */
+    public Map<String, AdaptiveConcurrencyLimiter> getConcurrencyLimiters() {
+        return Collections.unmodifiableMap(limiters);
     }
 
     public CompletableFuture<String> sendTask(final String url, final byte[] requestPayload) {
+        return sendTaskForBytes(url, requestPayload).thenApply(bytes -> new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    public CompletableFuture<byte[]> sendTaskForBytes(final String url, final byte[] requestPayload) {
+        return send(URI.create(url), requestPayload, 0, requestPayload.length);
+    }
+
+    /**
+     * If the buffer is heap backed, the publisher reads straight out of its backing array, so the payload is never
+     * copied on the way out. Direct buffers have no array to share and have to be copied once.
+     */
+    public CompletableFuture<byte[]> sendTaskForBytes(final String url, final ByteBuffer requestPayload) {
+        if(requestPayload.hasArray()) {
+            return send(URI.create(url), requestPayload.array(), requestPayload.arrayOffset() + requestPayload.position(), requestPayload.remaining());
+        }
+        val copy = new byte[requestPayload.remaining()];
+        requestPayload.duplicate().get(copy);
+        return send(URI.create(url), copy, 0, copy.length);
+    }
+
+    public CompletableFuture<ByteBuffer> sendTaskForBuffer(final String url, final ByteBuffer requestPayload) {
+        return sendTaskForBytes(url, requestPayload).thenApply(ByteBuffer::wrap);
+    }
+
+    /**
+     * For payloads too large to hold in memory at once. The request body is pulled from the stream as the client
+     * writes it out, and the response is handed back as soon as the headers arrive, to be read by the caller as it
+     * comes off the wire. The caller is responsible for closing the returned stream.
+     */
+    public CompletableFuture<InputStream> sendTaskForStream(final String url, final Supplier<? extends InputStream> requestPayload) {
+        val uri = URI.create(url);
         val request = HttpRequest.newBuilder()
-                .POST(HttpRequest.BodyPublishers.ofByteArray(requestPayload))
-                .uri(URI.create(url))
+                .POST(HttpRequest.BodyPublishers.ofInputStream(requestPayload))
+                .uri(uri)
                 .build();
-        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
-                .thenApply(HttpResponse::body);
+        // the body sizes aren't known here, they're streamed after this completes
+        val endpoint = metrics.forEndpoint(uri.getAuthority());
+        val start = endpoint.start();
+        return sendLimited(uri, request, HttpResponse.BodyHandlers.ofInputStream())
+                .whenComplete((response, error) -> endpoint.end(start, 0, 0, isError(response, error)))
+                .thenApply(response -> {
+                    if(response.statusCode() >= 400) {
+                        closeQuietly(response.body());
+                        throw new StatusException(uri, response.statusCode());
+                    }
+                    return response.body();
+                });
+    }
+
+    private CompletableFuture<byte[]> send(final URI uri, final byte[] payload, final int offset, final int length) {
+        val endpoint = metrics.forEndpoint(uri.getAuthority());
+        val start = endpoint.start();
+        val builder = HttpRequest.newBuilder().uri(uri);
+
+        final int wireLength;
+        val encoding = requestEncodings.get(uri.getAuthority());
+        if(nonNull(encoding) && compression.shouldCompress(length)) {
+            val compressed = HttpCompression.compress(payload, offset, length, encoding);
+            wireLength = compressed.length;
+            builder.header(HttpCompression.CONTENT_ENCODING, encoding.token())
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(compressed));
+        } else {
+            wireLength = length;
+            builder.POST(HttpRequest.BodyPublishers.ofByteArray(payload, offset, length));
+        }
+        if(compression.isEnabled()) {
+            builder.header(HttpCompression.ACCEPT_ENCODING, compression.acceptEncoding());
+        }
+
+        return sendLimited(uri, builder.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .whenComplete((response, error) ->
+                        endpoint.end(start, wireLength, isNull(error) ? response.body().length : 0, isError(response, error)))
+                .thenApply(response -> decode(uri, response));
+    }
+
+    /**
+     * What a request fails with when the server answers with an error status. The body of such a response is not
+     * passed on: {@link WebServer} sends none, and it would be no task result either way.
+     */
+    public static class StatusException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        @Getter private final int statusCode;
+
+        StatusException(final URI uri, final int statusCode) {
+            super(String.format("%s answered %d", uri, statusCode));
+            this.statusCode = statusCode;
+        }
+    }
+
+    private <T> CompletableFuture<HttpResponse<T>> sendLimited(final URI uri, final HttpRequest request, final HttpResponse.BodyHandler<T> handler) {
+        val limiter = limiters.computeIfAbsent(uri.getAuthority(), authority -> new AdaptiveConcurrencyLimiter(limiterSettings));
+        return limiter.acquire().thenCompose(permit -> {
+            val start = System.nanoTime();
+            return httpClient.sendAsync(request, handler).whenComplete((response, error) ->
+                    limiter.release(System.nanoTime() - start, isNull(error) && !isOverloaded(response.statusCode())));
+        });
+    }
+
+    private static boolean isError(final HttpResponse<?> response, final Throwable error) {
+        return nonNull(error) || response.statusCode() >= 400;
+    }
+
+    private static void closeQuietly(final InputStream in) {
+        try {
+            in.close();
+        } catch (final IOException ignored) {
+            // nothing more to read from it anyway
+        }
+    }
+
+    private static boolean isOverloaded(final int statusCode) {
+        return statusCode == 429 || statusCode >= 500;
+    }
+
+    private byte[] decode(final URI uri, final HttpResponse<byte[]> response) {
+        if(response.statusCode() >= 400) {
+            // the server no longer takes what we compressed with, so go back to raw until it says otherwise
+            if(response.statusCode() == 415) requestEncodings.remove(uri.getAuthority());
+            throw new StatusException(uri, response.statusCode());
+        }
+        val headers = response.headers();
+
+        val accepted = compression.negotiate(headers.firstValue(HttpCompression.ACCEPT_ENCODING).orElse(null));
+        if(accepted.isPresent()) {
+            requestEncodings.put(uri.getAuthority(), accepted.get());
+        } else {
+            requestEncodings.remove(uri.getAuthority());
+        }
+
+        try {
+            val encoding = HttpCompression.Encoding.fromContentEncoding(headers.firstValue(HttpCompression.CONTENT_ENCODING).orElse(null));
+            return encoding.isPresent() ? HttpCompression.decompress(response.body(), encoding.get()) : response.body();
+        } catch (final IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
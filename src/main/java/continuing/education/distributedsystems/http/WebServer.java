@@ -1,11 +1,230 @@
 package continuing.education.distributedsystems.http;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 import lombok.AccessLevel;
+import lombok.Getter;
 import lombok.experimental.FieldDefaults;
+import lombok.val;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.UnaryOperator;
+import java.util.zip.ZipException;
+
+/**
+ * The worker side of the scatter-gather. Task payloads are read and written as raw bytes; what they mean is entirely
+ * up to the {@code taskHandler}, so the server never has to transcode them.
+ *
+ * Compressed request bodies are always decoded, up to {@link HttpCompression#DEFAULT_MAX_INFLATED} bytes inflated;
+ * anything bigger is refused with a 413 rather than risk a zip bomb taking the worker down. With compression enabled
+ * the server also advertises that on every response, and compresses responses for clients that ask for it (see
+ * {@link HttpCompression}).
+ *
+ * Every route is timed and counted per route, and the numbers are served as text on {@code /metrics}.
+ *
+ * Start the JVM with {@code -Dsun.net.httpserver.nodelay=true}. HttpServer leaves Nagle's algorithm on unless told
+ * otherwise, and it writes a response's headers and body separately, so the body sits waiting on the client's delayed
+ * ACK: ~40ms added to every request. The property is JVM wide, and read once when the first server is created.
+ */
 @FieldDefaults(level = AccessLevel.PRIVATE)
 public class WebServer {
 
     private static final String TASK = "/task";
     private static final String STATUS = "/status";
+    private static final String METRICS = "/metrics";
+    private static final byte[] ALIVE = "Server is alive".getBytes(StandardCharsets.UTF_8);
+    private static final int THREADS = 8;
+
+    final int port;
+    final UnaryOperator<byte[]> taskHandler;
+    final HttpCompression compression;
+    @Getter final HttpMetrics metrics = new HttpMetrics("server");
+    HttpServer server;
+    ExecutorService executor;
+
+    public WebServer(final int port, final UnaryOperator<byte[]> taskHandler) {
+        this(port, taskHandler, HttpCompression.DISABLED);
+    }
+
+    public WebServer(final int port, final UnaryOperator<byte[]> taskHandler, final HttpCompression compression) {
+        this.port = port;
+        this.taskHandler = taskHandler;
+        this.compression = compression;
+    }
+
+    public void startServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(STATUS, instrumented(STATUS, this::handleStatusCheckRequest));
+        server.createContext(TASK, instrumented(TASK, this::handleTaskRequest));
+        server.createContext(METRICS, instrumented(METRICS, this::handleMetricsRequest));
+        this.executor = Executors.newFixedThreadPool(THREADS);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public void stopServer() {
+        server.stop(0);
+        // HttpServer doesn't own the executor it was given, and its threads would otherwise keep the JVM alive
+        executor.shutdown();
+    }
+
+    /**
+     * The port actually bound, which differs from {@code port} when the server was started on port 0.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    private void handleStatusCheckRequest(final HttpExchange exchange) throws IOException {
+        if(!exchange.getRequestMethod().equalsIgnoreCase("get")) {
+            exchange.close();
+            return;
+        }
+        sendResponse(ALIVE, exchange);
+    }
+
+    private void handleMetricsRequest(final HttpExchange exchange) throws IOException {
+        if(!exchange.getRequestMethod().equalsIgnoreCase("get")) {
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        sendResponse(metrics.render().getBytes(StandardCharsets.UTF_8), exchange);
+    }
+
+    private void handleTaskRequest(final HttpExchange exchange) throws IOException {
+        if(!exchange.getRequestMethod().equalsIgnoreCase("post")) {
+            exchange.close();
+            return;
+        }
+
+        final Optional<HttpCompression.Encoding> requestEncoding;
+        try {
+            requestEncoding = HttpCompression.Encoding.fromContentEncoding(exchange.getRequestHeaders().getFirst(HttpCompression.CONTENT_ENCODING));
+        } catch (final IllegalArgumentException e) {
+            sendError(415, exchange);
+            return;
+        }
+
+        final byte[] requestBytes;
+        try(val body = exchange.getRequestBody()) {
+            // a compressed body is inflated as it comes in, so it is never held in memory in its compressed form
+            requestBytes = requestEncoding.isPresent()
+                    ? HttpCompression.decompress(body, requestEncoding.get(), HttpCompression.DEFAULT_MAX_INFLATED)
+                    : body.readAllBytes();
+        } catch (final HttpCompression.TooLargeException e) {
+            sendError(413, exchange);
+            return;
+        } catch (final ZipException e) {
+            sendError(400, exchange);
+            return;
+        }
+        sendResponse(taskHandler.apply(requestBytes), exchange);
+    }
+
+    private void sendResponse(final byte[] responseBytes, final HttpExchange exchange) throws IOException {
+        val responseHeaders = exchange.getResponseHeaders();
+        if(compression.isEnabled()) {
+            // tells the client it may compress what it sends us from now on
+            responseHeaders.set(HttpCompression.ACCEPT_ENCODING, compression.acceptEncoding());
+        }
+
+        val responseEncoding = compression.shouldCompress(responseBytes.length)
+                ? compression.negotiate(exchange.getRequestHeaders().getFirst(HttpCompression.ACCEPT_ENCODING))
+                : Optional.<HttpCompression.Encoding>empty();
+        if(responseEncoding.isPresent()) {
+            responseHeaders.set(HttpCompression.CONTENT_ENCODING, responseEncoding.get().token());
+            responseHeaders.set("Vary", HttpCompression.ACCEPT_ENCODING);
+            // the compressed length isn't known up front, so the body goes out chunked, straight from the Deflater
+            exchange.sendResponseHeaders(200, 0);
+            try(val out = exchange.getResponseBody()) {
+                HttpCompression.compress(responseBytes, 0, responseBytes.length, responseEncoding.get(), out);
+            }
+            return;
+        }
+
+        // a length of 0 would mean "chunked" to the HttpServer, -1 is how it spells an empty body
+        exchange.sendResponseHeaders(200, responseBytes.length == 0 ? -1 : responseBytes.length);
+        try(val out = exchange.getResponseBody()) {
+            out.write(responseBytes);
+        }
+    }
+
+    private void sendError(final int status, final HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    /**
+     * Wraps the exchange's streams in counters, so the bytes actually read and written (compressed or not) are
+     * recorded without the handlers having to know about it.
+     */
+    private HttpHandler instrumented(final String route, final HttpHandler handler) {
+        val endpoint = metrics.forEndpoint(route);
+        return exchange -> {
+            val start = endpoint.start();
+            val in = new CountingInputStream(exchange.getRequestBody());
+            val out = new CountingOutputStream(exchange.getResponseBody());
+            exchange.setStreams(in, out);
+            boolean error = true;
+            try {
+                handler.handle(exchange);
+                error = exchange.getResponseCode() >= 400;
+            } finally {
+                endpoint.end(start, out.count, in.count, error);
+            }
+        };
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(final InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            val b = super.read();
+            if(b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            val n = super.read(b, off, len);
+            if(n > 0) count += n;
+            return n;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
 }
@@ -0,0 +1,96 @@
+package continuing.education.distributedsystems.metrics;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed size, log-linear latency histogram in the style of HdrHistogram, in microseconds.
+ *
+ * Values below 64us each get their own bucket. Above that, every power of two is split into 32 equal buckets, so a
+ * value is always reported within ~3% of what was recorded, whether it was 100us or 10s. Values past ~71 minutes
+ * are clamped into the last bucket.
+ *
+ * Recording is a couple of shifts to find the bucket and an atomic increment: no locks and no allocation, so it is
+ * cheap enough to do on every request. Reads walk the buckets without stopping writers, so a percentile read while
+ * recording is going on is approximate, which is fine for monitoring.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final long MAX_VALUE = (1L << 32) - 1;
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    LongAdder totalCount = new LongAdder();
+    LongAdder totalMicros = new LongAdder();
+    AtomicLong maxMicros = new AtomicLong();
+
+    public void recordNanos(final long nanos) {
+        recordMicros(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void recordMicros(final long micros) {
+        final long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        totalCount.increment();
+        totalMicros.add(value);
+        maxMicros.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    public double getMeanMicros() {
+        final long count = totalCount.sum();
+        return count == 0 ? 0 : (double) totalMicros.sum() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound of the bucket the percentile falls in, i.e. no recorded value at or below that
+     * percentile was higher than this (up to the bucket resolution)
+     */
+    public long getValueAtPercentile(final double percentile) {
+        long total = 0;
+        for(int i = 0; i < BUCKETS; i++) total += counts.get(i);
+        if(total == 0) return 0;
+
+        final long target = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if(seen >= target) return Math.min(highestValueIn(i), maxMicros.get());
+        }
+        return maxMicros.get();
+    }
+
+    private static int indexOf(final long value) {
+        if(value < SUB_BUCKETS) return (int) value;
+        // bucket = which power of two the value is in, plus its next (SUB_BUCKET_BITS - 1) most significant bits
+        final int msb = 63 - Long.numberOfLeadingZeros(value);
+        final int shift = msb - (SUB_BUCKET_BITS - 1);
+        final int mantissa = (int) (value >>> shift);
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (mantissa - HALF_SUB_BUCKETS);
+    }
+
+    private static long highestValueIn(final int index) {
+        if(index < SUB_BUCKETS) return index;
+        final int offset = index - SUB_BUCKETS;
+        final int shift = offset / HALF_SUB_BUCKETS + 1;
+        final long mantissa = offset % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
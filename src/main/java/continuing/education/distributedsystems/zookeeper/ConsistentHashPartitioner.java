@@ -0,0 +1,255 @@
+package continuing.education.distributedsystems.zookeeper;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Assigns keys to the workers in the {@link ServiceRegistryDiscovery} with a consistent-hash ring, so the same key
+ * keeps going to the same worker (and finds its cache warm there), and a worker joining or leaving only moves the keys
+ * it takes over or gives up, about 1/n of them, instead of reshuffling everything the way {@code hash(key) % n} does.
+ *
+ * Each worker is placed on the ring {@code virtualNodes} times. With only one point each, the arcs between workers
+ * vary wildly in length, and so does the share of keys they get; with a hundred or so, the shares even out.
+ *
+ * Consistent hashing alone still lets one hot key, or an unlucky run of keys, pile up on one worker. With
+ * {@link #acquire}, a worker is never given more than {@code loadFactor} times the average load: when the owner of a
+ * key is full, the key goes on to the next worker clockwise that isn't ("consistent hashing with bounded loads"). A
+ * key only moves while its owner is overloaded, so most keys stay put.
+ *
+ * The ring is a sorted array of points plus a parallel array of owners, swapped out as a whole on membership changes.
+ * Lookups are a binary search without locks. A change only hashes the points of the workers that joined, and merges
+ * them into the existing ring; nothing else is re-hashed or re-sorted.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ConsistentHashPartitioner implements MembershipListener {
+
+    public static final int DEFAULT_VIRTUAL_NODES = 100;
+    public static final double DEFAULT_LOAD_FACTOR = 1.25;
+
+    int virtualNodes;
+    double loadFactor;
+    Map<String, AtomicInteger> loads = new ConcurrentHashMap<>();
+    AtomicInteger totalLoad = new AtomicInteger();
+    @NonFinal volatile Ring ring = Ring.EMPTY;
+    // the version of the snapshot the ring was built from, guarded by this
+    @NonFinal long version = -1;
+
+    public ConsistentHashPartitioner(final ServiceRegistryDiscovery registry) throws KeeperException, InterruptedException {
+        this(registry, DEFAULT_VIRTUAL_NODES, DEFAULT_LOAD_FACTOR);
+    }
+
+    /**
+     * @param loadFactor how far above the average load a worker may go, must be greater than 1
+     */
+    public ConsistentHashPartitioner(final ServiceRegistryDiscovery registry, final int virtualNodes, final double loadFactor) throws KeeperException, InterruptedException {
+        if(virtualNodes < 1) throw new IllegalArgumentException("virtualNodes must be at least 1, was " + virtualNodes);
+        if(loadFactor <= 1) throw new IllegalArgumentException("loadFactor must be greater than 1, was " + loadFactor);
+        this.virtualNodes = virtualNodes;
+        this.loadFactor = loadFactor;
+        registry.addMembershipListener(this);
+        update(registry.getSnapshot());
+    }
+
+    /**
+     * @return the worker that owns the key, regardless of load
+     * @throws IllegalStateException if no workers are registered
+     */
+    public String nodeFor(final String key) {
+        val current = ring;
+        if(current.isEmpty()) throw new IllegalStateException("No workers registered");
+        return current.owners[current.indexOf(hash(key))];
+    }
+
+    /**
+     * @return the first worker, starting at the key's owner and going clockwise, that is below its share of the load.
+     * That worker's load is counted up, and has to be given back with {@link #release}.
+     * @throws IllegalStateException if no workers are registered
+     */
+    public String acquire(final String key) {
+        val current = ring;
+        if(current.isEmpty()) throw new IllegalStateException("No workers registered");
+
+        val start = current.indexOf(hash(key));
+        val points = current.points.length;
+        while(true) {
+            val capacity = (int) Math.ceil(loadFactor * (totalLoad.get() + 1) / current.nodes.size());
+            for(int i = 0; i < points; i++) {
+                val owner = current.owners[(start + i) % points];
+                val load = loads.computeIfAbsent(owner, ignored -> new AtomicInteger());
+                val observed = load.get();
+                if(observed < capacity && load.compareAndSet(observed, observed + 1)) {
+                    totalLoad.incrementAndGet();
+                    return owner;
+                }
+            }
+            // everybody filled up while we were looking, the capacity has gone up since, so go round again
+        }
+    }
+
+    public void release(final String node) {
+        val load = loads.get(node);
+        // the worker may have left the ring in the meantime, its load went with it
+        if(load != null && load.getAndUpdate(current -> Math.max(0, current - 1)) > 0) totalLoad.decrementAndGet();
+    }
+
+    /**
+     * Sends the keyed request to the worker picked by {@link #acquire}, and releases it once the request completes.
+     *
+     * @param call given the worker's address, sends it the request
+     */
+    public <T> CompletableFuture<T> execute(final String key, final Function<String, CompletableFuture<T>> call) {
+        val node = acquire(key);
+        final CompletableFuture<T> response;
+        try {
+            response = call.apply(node);
+        } catch (final RuntimeException e) {
+            release(node);
+            throw e;
+        }
+        return response.whenComplete((result, error) -> release(node));
+    }
+
+    public Set<String> getNodes() {
+        return ring.nodes;
+    }
+
+    public int getLoad(final String node) {
+        val load = loads.get(node);
+        return load == null ? 0 : load.get();
+    }
+
+    @Override
+    public void onMembershipChanged(final Map<String, String> added, final Map<String, String> removed, final RegistrySnapshot snapshot) {
+        update(snapshot);
+    }
+
+    /*
+     Called from the registry's refresh thread, and once from the constructor on the caller's thread. A refresh can land
+     between the constructor registering the listener and reading the snapshot, so updates are serialized, and a
+     snapshot older than the one the ring was built from is ignored. The diff is taken against the ring's own node set
+     rather than the registry's added/removed znodes, since two znodes can carry the same address.
+     */
+    private synchronized void update(final RegistrySnapshot snapshot) {
+        if(snapshot.getVersion() <= version) return;
+        this.version = snapshot.getVersion();
+
+        val current = ring;
+        val next = Set.copyOf(new HashSet<>(snapshot.getAddresses()));
+        val joined = new HashSet<>(next);
+        joined.removeAll(current.nodes);
+        val left = new HashSet<>(current.nodes);
+        left.removeAll(next);
+        if(joined.isEmpty() && left.isEmpty()) return;
+
+        ring = current.without(left).merge(pointsOf(joined), next);
+        for(val node : left) {
+            val load = loads.remove(node);
+            if(load != null) totalLoad.addAndGet(-load.get());
+        }
+    }
+
+    private Ring pointsOf(final Set<String> nodes) {
+        val points = new long[nodes.size() * virtualNodes];
+        val owners = new String[points.length];
+        int i = 0;
+        for(val node : nodes) {
+            val base = Hashing.fnv1a64(node);
+            for(int replica = 0; replica < virtualNodes; replica++, i++) {
+                points[i] = Hashing.mix64(base + replica);
+                owners[i] = node;
+            }
+        }
+        return Ring.sorted(points, owners, nodes);
+    }
+
+    private static long hash(final String key) {
+        return Hashing.mix64(Hashing.fnv1a64(key));
+    }
+
+    @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+    private static final class Ring {
+        static final Ring EMPTY = new Ring(new long[0], new String[0], Set.of());
+
+        long[] points;
+        String[] owners;
+        Set<String> nodes;
+
+        Ring(final long[] points, final String[] owners, final Set<String> nodes) {
+            this.points = points;
+            this.owners = owners;
+            this.nodes = nodes;
+        }
+
+        static Ring sorted(final long[] points, final String[] owners, final Set<String> nodes) {
+            val order = new Integer[points.length];
+            for(int i = 0; i < order.length; i++) order[i] = i;
+            // ties between points of different nodes are broken by name, so every client builds the same ring
+            Arrays.sort(order, (a, b) -> points[a] != points[b] ? Long.compare(points[a], points[b]) : owners[a].compareTo(owners[b]));
+
+            val sortedPoints = new long[points.length];
+            val sortedOwners = new String[owners.length];
+            for(int i = 0; i < order.length; i++) {
+                sortedPoints[i] = points[order[i]];
+                sortedOwners[i] = owners[order[i]];
+            }
+            return new Ring(sortedPoints, sortedOwners, nodes);
+        }
+
+        boolean isEmpty() {
+            return points.length == 0;
+        }
+
+        // the first point at or after the hash, wrapping round to the start of the ring
+        int indexOf(final long hash) {
+            val index = Arrays.binarySearch(points, hash);
+            val insertion = index >= 0 ? index : -index - 1;
+            return insertion == points.length ? 0 : insertion;
+        }
+
+        Ring without(final Set<String> left) {
+            if(left.isEmpty()) return this;
+            int kept = 0;
+            for(val owner : owners) if(!left.contains(owner)) kept++;
+
+            val keptPoints = new long[kept];
+            val keptOwners = new String[kept];
+            for(int i = 0, j = 0; i < points.length; i++) {
+                if(left.contains(owners[i])) continue;
+                keptPoints[j] = points[i];
+                keptOwners[j++] = owners[i];
+            }
+            return new Ring(keptPoints, keptOwners, nodes);
+        }
+
+        // both rings are sorted, so a single merge pass is enough
+        Ring merge(final Ring other, final Set<String> mergedNodes) {
+            val mergedPoints = new long[points.length + other.points.length];
+            val mergedOwners = new String[mergedPoints.length];
+            int i = 0, j = 0, k = 0;
+            while(i < points.length || j < other.points.length) {
+                val takeOther = i == points.length || (j < other.points.length && (other.points[j] < points[i]
+                        || (other.points[j] == points[i] && other.owners[j].compareTo(owners[i]) < 0)));
+                if(takeOther) {
+                    mergedPoints[k] = other.points[j];
+                    mergedOwners[k++] = other.owners[j++];
+                } else {
+                    mergedPoints[k] = points[i];
+                    mergedOwners[k++] = owners[i++];
+                }
+            }
+            return new Ring(mergedPoints, mergedOwners, mergedNodes);
+        }
+    }
+}
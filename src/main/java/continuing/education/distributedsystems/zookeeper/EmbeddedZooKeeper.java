@@ -0,0 +1,90 @@
+package continuing.education.distributedsystems.zookeeper;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.server.ServerCnxnFactory;
+import org.apache.zookeeper.server.ZooKeeperServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A standalone ZooKeeper server running inside this JVM, on an ephemeral loopback port, with its snapshots and
+ * transaction log in a temp directory that is deleted again on {@link #close()}. Enough to run elections and the
+ * service registry against without setting up a server by hand with zkCli.sh, and to count the requests they make.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class EmbeddedZooKeeper implements AutoCloseable {
+
+    private static final int TICK_TIME_MILLIS = 500;
+    private static final int MAX_CLIENT_CONNECTIONS = 1_000;
+
+    Path dataDir;
+    ZooKeeperServer server;
+    ServerCnxnFactory connectionFactory;
+
+    private EmbeddedZooKeeper(final Path dataDir, final ZooKeeperServer server, final ServerCnxnFactory connectionFactory) {
+        this.dataDir = dataDir;
+        this.server = server;
+        this.connectionFactory = connectionFactory;
+    }
+
+    /**
+     * The tick time is kept short (500ms) so sessions can be given timeouts down to 1s, and expire quickly.
+     */
+    public static EmbeddedZooKeeper start() throws IOException, InterruptedException {
+        val dataDir = Files.createTempDirectory("embedded-zookeeper");
+        val server = new ZooKeeperServer(dataDir.toFile(), dataDir.toFile(), TICK_TIME_MILLIS);
+        val connectionFactory = ServerCnxnFactory.createFactory(new InetSocketAddress("127.0.0.1", 0), MAX_CLIENT_CONNECTIONS);
+        connectionFactory.startup(server);
+        return new EmbeddedZooKeeper(dataDir, server, connectionFactory);
+    }
+
+    public String getConnectString() {
+        return "127.0.0.1:" + connectionFactory.getLocalPort();
+    }
+
+    /**
+     * @return a client whose session is already established
+     */
+    public ZooKeeper newClient(final Duration sessionTimeout) throws IOException, InterruptedException {
+        val connected = new CountDownLatch(1);
+        val client = new ZooKeeper(getConnectString(), (int) sessionTimeout.toMillis(), event -> {
+            if(event.getState() == Watcher.Event.KeeperState.SyncConnected) connected.countDown();
+        });
+        if(!connected.await(sessionTimeout.toMillis(), TimeUnit.MILLISECONDS)) {
+            client.close();
+            throw new IOException("Could not connect to " + getConnectString() + " within " + sessionTimeout);
+        }
+        return client;
+    }
+
+    /**
+     * @return every request the server has received from any client since it started, pings included
+     */
+    public long getPacketsReceived() {
+        return server.serverStats().getPacketsReceived();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connectionFactory.shutdown();
+        server.shutdown();
+        try(val files = Files.walk(dataDir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (final UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+}
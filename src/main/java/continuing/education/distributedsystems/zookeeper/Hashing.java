@@ -0,0 +1,35 @@
+package continuing.education.distributedsystems.zookeeper;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashes that have to give the same answer on every node, which rules out {@code String.hashCode} (only 32 bits, and
+ * poorly spread over similar strings like "node-1", "node-2").
+ */
+final class Hashing {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Hashing() {
+    }
+
+    static long fnv1a64(final String value) {
+        long hash = FNV_OFFSET_BASIS;
+        for(final byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * The SplitMix64 finalizer: every input bit affects every output bit, so inputs that differ in a single bit (shard
+     * numbers, replica indexes) end up far apart.
+     */
+    static long mix64(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,12 @@
+package continuing.education.distributedsystems.zookeeper;
+
+import java.util.Map;
+
+/**
+ * Notified by {@link ServiceRegistryDiscovery} whenever the set of registered workers changes. Both maps go from the
+ * worker's znode name to the address it registered with, and only hold what changed since the previous snapshot.
+ */
+public interface MembershipListener {
+
+    void onMembershipChanged(Map<String, String> added, Map<String, String> removed, RegistrySnapshot snapshot);
+}
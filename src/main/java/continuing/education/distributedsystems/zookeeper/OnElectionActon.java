@@ -1,24 +1,47 @@
 package continuing.education.distributedsystems.zookeeper;
 
 import lombok.AccessLevel;
-import lombok.AllArgsConstructor;
 import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
 import lombok.val;
 import org.apache.zookeeper.KeeperException;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.function.Function;
 
-@AllArgsConstructor
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * A worker registers its address, along with its load if it was given a way to sample it, in which case a
+ * {@link WorkerLoadReporter} keeps that load up to date for as long as it stays a worker.
+ */
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
-public class OnElectionActon implements OnElectionCallback {
+public class OnElectionActon implements OnElectionCallback, AutoCloseable {
 
     ServiceRegistryDiscovery registryDiscovery;
     int port;
+    // the worker's load, given its address; null to register just the address
+    Function<String, WorkerMetadata> load;
+    // guarded by this: started from the election thread, but closed from whichever thread shuts the node down
+    @NonFinal WorkerLoadReporter loadReporter;
+
+    public OnElectionActon(final ServiceRegistryDiscovery registryDiscovery, final int port) {
+        this(registryDiscovery, port, null);
+    }
+
+    public OnElectionActon(final ServiceRegistryDiscovery registryDiscovery, final int port,
+                           final Function<String, WorkerMetadata> load) {
+        this.registryDiscovery = registryDiscovery;
+        this.port = port;
+        this.load = load;
+    }
 
     @Override
     public void onElectedToBeLeader() {
-        // if promoted to leader, unregister from registry
+        // if promoted to leader, stop reporting load and unregister from registry
+        stopReporting();
         registryDiscovery.unregisterFromCluster();
         registryDiscovery.registerUpdates();
     }
@@ -27,9 +50,32 @@ public class OnElectionActon implements OnElectionCallback {
     public void onWorker() {
         try {
             val currentServiceAddy = String.format("http://%s:%d", InetAddress.getLocalHost().getCanonicalHostName(), port);
-            registryDiscovery.registerToCluster(currentServiceAddy);
+            if(isNull(load)) {
+                registryDiscovery.registerToCluster(currentServiceAddy);
+                return;
+            }
+            registryDiscovery.registerToCluster(load.apply(currentServiceAddy));
+            startReporting(currentServiceAddy);
         } catch (final UnknownHostException | InterruptedException | KeeperException e) {
             e.printStackTrace();
         }
     }
+
+    @Override
+    public void close() {
+        stopReporting();
+    }
+
+    private synchronized void startReporting(final String address) {
+        if(nonNull(loadReporter)) return;
+        loadReporter = new WorkerLoadReporter(WorkerLoadReporter.Settings.defaults());
+        loadReporter.track(registryDiscovery, () -> load.apply(address));
+    }
+
+    private synchronized void stopReporting() {
+        if(nonNull(loadReporter)) {
+            loadReporter.close();
+            loadReporter = null;
+        }
+    }
 }
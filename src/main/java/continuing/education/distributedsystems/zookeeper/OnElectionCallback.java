@@ -8,4 +8,17 @@ public interface OnElectionCallback {
     void onElectedToBeLeader();
 
     void onWorker();
+
+    /**
+     * Called by {@link ShardedElection} once this node holds the lock of the shard.
+     */
+    default void onElectedToBeLeader(final int shard) {
+    }
+
+    /**
+     * Called by {@link ShardedElection} before the lock of the shard is given up, so leader work for it can be stopped
+     * before anybody else can take over.
+     */
+    default void onShardLeadershipRevoked(final int shard) {
+    }
 }
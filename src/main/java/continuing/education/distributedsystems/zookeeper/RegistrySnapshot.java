@@ -0,0 +1,35 @@
+package continuing.education.distributedsystems.zookeeper;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.ToString;
+import lombok.experimental.FieldDefaults;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable view of the service registry at one point in time. {@code version} goes up by one every time the
+ * membership changes, so two snapshots can be compared cheaply.
+ */
+@Getter
+@ToString
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class RegistrySnapshot {
+
+    static final RegistrySnapshot EMPTY = new RegistrySnapshot(0, Map.of());
+
+    long version;
+    // znode name -> address, in znode (i.e. registration) order
+    Map<String, String> members;
+    @ToString.Exclude List<String> addresses;
+
+    RegistrySnapshot(final long version, final Map<String, String> members) {
+        this.version = version;
+        this.members = Collections.unmodifiableMap(new TreeMap<>(members));
+        this.addresses = Collections.unmodifiableList(new ArrayList<>(this.members.values()));
+    }
+}
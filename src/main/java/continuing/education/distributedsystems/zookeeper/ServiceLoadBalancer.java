@@ -0,0 +1,234 @@
+package continuing.education.distributedsystems.zookeeper;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Picks a worker out of the addresses currently in the {@link ServiceRegistryDiscovery}. It registers itself as a
+ * {@link MembershipListener}, so the candidate set follows the registry on its own.
+ *
+ * ROUND_ROBIN: each worker in turn. Fine when every task costs about the same.
+ * POWER_OF_TWO_CHOICES: two workers at random, and whichever has fewer requests outstanding. Nearly as good as
+ * always picking the least loaded worker, without having to look at all of them, and without the herding you get when
+ * every client sends its next request to the same "least loaded" worker at once.
+ * LEAST_LATENCY: the lowest expected wait, estimated as the worker's average latency times (outstanding + 1). Workers
+ * with no latency samples yet are taken to be as fast as the average of the others, so a new worker is probed
+ * alongside them rather than sent everything until its first response comes back. A failure doubles the worker's
+ * latency estimate instead of being averaged in, since a worker that fails fast would otherwise look the fastest.
+ *
+ * Per endpoint stats are atomics, and the endpoint list is an immutable list swapped out as a whole on membership
+ * changes, so choosing never takes a lock. Endpoints that stay in the registry keep their stats across changes.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ServiceLoadBalancer implements MembershipListener {
+
+    // weight of each new latency sample in the moving average
+    private static final double LATENCY_DECAY = 0.2;
+    private static final double FAILURE_PENALTY = 2.0;
+    // so that a worker that kept failing can still be tried again once the others are busy enough
+    private static final long MAX_PENALIZED_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    public enum Strategy {
+        ROUND_ROBIN,
+        POWER_OF_TWO_CHOICES,
+        LEAST_LATENCY
+    }
+
+    Strategy strategy;
+    AtomicLong cursor = new AtomicLong();
+    @Getter @NonFinal volatile List<Endpoint> endpoints = List.of();
+    // the version of the snapshot the endpoints were built from, guarded by this
+    @NonFinal long version = -1;
+
+    public ServiceLoadBalancer(final ServiceRegistryDiscovery registry, final Strategy strategy) throws KeeperException, InterruptedException {
+        this.strategy = strategy;
+        registry.addMembershipListener(this);
+        updateEndpoints(registry.getSnapshot());
+    }
+
+    /**
+     * Sends a request to a worker chosen by the strategy, and keeps that worker's stats up to date as it completes.
+     *
+     * @param call given the worker's address, sends it the request
+     */
+    public <T> CompletableFuture<T> execute(final Function<String, CompletableFuture<T>> call) {
+        val endpoint = choose();
+        val start = endpoint.start();
+        final CompletableFuture<T> response;
+        try {
+            response = call.apply(endpoint.getAddress());
+        } catch (final RuntimeException e) {
+            end(endpoint, start, false);
+            throw e;
+        }
+        return response.whenComplete((result, error) -> end(endpoint, start, isNull(error)));
+    }
+
+    /**
+     * @throws IllegalStateException if no workers are registered
+     */
+    public Endpoint choose() {
+        val current = this.endpoints;
+        if(current.isEmpty()) throw new IllegalStateException("No workers registered");
+        if(current.size() == 1) return current.get(0);
+
+        switch (strategy) {
+            case POWER_OF_TWO_CHOICES:
+                return powerOfTwoChoices(current);
+            case LEAST_LATENCY:
+                return leastLatency(current);
+            case ROUND_ROBIN:
+            default:
+                return current.get((int) Math.floorMod(cursor.getAndIncrement(), (long) current.size()));
+        }
+    }
+
+    @Override
+    public void onMembershipChanged(final Map<String, String> added, final Map<String, String> removed, final RegistrySnapshot snapshot) {
+        updateEndpoints(snapshot);
+    }
+
+    /*
+     Called from the registry's refresh thread, and once from the constructor on the caller's thread. A refresh can
+     land between the constructor registering the listener and reading the snapshot, so the older snapshot must not
+     overwrite the newer one.
+     */
+    private synchronized void updateEndpoints(final RegistrySnapshot snapshot) {
+        if(snapshot.getVersion() <= version) return;
+        this.version = snapshot.getVersion();
+
+        val existing = new LinkedHashMap<String, Endpoint>();
+        for(val endpoint : endpoints) existing.put(endpoint.getAddress(), endpoint);
+
+        // two registrations of the same address are one endpoint as far as load is concerned
+        val next = new LinkedHashMap<String, Endpoint>();
+        for(val address : snapshot.getAddresses()) {
+            next.computeIfAbsent(address, key -> existing.getOrDefault(key, new Endpoint(key)));
+        }
+        this.endpoints = List.copyOf(next.values());
+    }
+
+    private static Endpoint powerOfTwoChoices(final List<Endpoint> endpoints) {
+        val random = ThreadLocalRandom.current();
+        val first = random.nextInt(endpoints.size());
+        // second pick from the remaining n - 1, so the two are always distinct
+        val second = (first + 1 + random.nextInt(endpoints.size() - 1)) % endpoints.size();
+
+        val a = endpoints.get(first);
+        val b = endpoints.get(second);
+        if(a.getOutstanding() != b.getOutstanding()) return a.getOutstanding() < b.getOutstanding() ? a : b;
+        return a.getLatencyNanos() <= b.getLatencyNanos() ? a : b;
+    }
+
+    private void end(final Endpoint endpoint, final long start, final boolean success) {
+        endpoint.end(start, success, success ? 0 : meanLatencyNanos(endpoints));
+    }
+
+    private static Endpoint leastLatency(final List<Endpoint> endpoints) {
+        // no samples yet: as fast as the rest, or with nothing to go on at all, down to the outstanding counts alone
+        val unsampled = Math.max(1, meanLatencyNanos(endpoints));
+        Endpoint best = null;
+        double bestCost = Double.MAX_VALUE;
+        for(val endpoint : endpoints) {
+            val latency = endpoint.getLatencyNanos() == 0 ? unsampled : endpoint.getLatencyNanos();
+            val cost = (double) latency * (endpoint.getOutstanding() + 1);
+            if(cost < bestCost) {
+                best = endpoint;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the mean latency of the endpoints that have any samples, or 0 if none have
+     */
+    private static long meanLatencyNanos(final List<Endpoint> endpoints) {
+        long sum = 0;
+        int sampled = 0;
+        for(val endpoint : endpoints) {
+            val latency = endpoint.getLatencyNanos();
+            if(latency == 0) continue;
+            sum += latency;
+            sampled++;
+        }
+        return sampled == 0 ? 0 : sum / sampled;
+    }
+
+    @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+    public static class Endpoint {
+        @Getter String address;
+        AtomicInteger outstanding = new AtomicInteger();
+        AtomicLong latencyNanos = new AtomicLong();
+        LongAdder requests = new LongAdder();
+        LongAdder failures = new LongAdder();
+
+        Endpoint(final String address) {
+            this.address = address;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return the moving average latency, or 0 if nothing has completed yet
+         */
+        public long getLatencyNanos() {
+            return latencyNanos.get();
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        long start() {
+            outstanding.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        /**
+         * @param referenceNanos for a failure, the least the penalized latency starts from, so that a worker that
+         *                       never succeeded still ends up behind the others
+         */
+        void end(final long startNanos, final boolean success, final long referenceNanos) {
+            val latency = System.nanoTime() - startNanos;
+            if(success) {
+                latencyNanos.accumulateAndGet(latency, (average, sample) ->
+                        average == 0 ? sample : (long) (average + LATENCY_DECAY * (sample - average)));
+            } else {
+                latencyNanos.accumulateAndGet(latency, (average, sample) -> (long) Math.min(MAX_PENALIZED_LATENCY_NANOS,
+                        Math.max(Math.max(average, sample), referenceNanos) * FAILURE_PENALTY));
+            }
+            outstanding.decrementAndGet();
+            requests.increment();
+            if(!success) failures.increment();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s(outstanding=%d, latency=%dus)", address, getOutstanding(), latencyNanos.get() / 1_000);
+        }
+    }
+}
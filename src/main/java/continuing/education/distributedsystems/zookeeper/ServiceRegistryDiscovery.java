@@ -5,9 +5,25 @@ import lombok.experimental.FieldDefaults;
 import lombok.val;
 import org.apache.zookeeper.*;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.Objects.isNull;
 import static java.util.Objects.nonNull;
@@ -16,34 +32,179 @@ import static java.util.Objects.nonNull;
  * In ZK, we are going to create a ZNode that stores the address of each instance in the cluster. Then, on startup,
  * each new service is going to register itself under that znode with its specific address. This way, at any time, a
  * given instance can call out to zookeeper to get the
+ *
+ * The current membership is held as an immutable {@link RegistrySnapshot} behind a volatile reference. Reads just
+ * dereference it (wait-free, never contending with the ZooKeeper event thread), and refreshes build a new snapshot
+ * and swap it in.
+ *
+ * In {@link WatchMode#PERSISTENT} mode a single recursive watch on the registry replaces the child watch that
+ * {@code getChildren} would otherwise have to set again after every change. It is only added once discovery is
+ * actually used (the first refresh): a worker that only registers has no use for every event under the registry.
+ *
+ * Watch events don't trigger a refresh themselves, they only mark the registry dirty. A rolling deploy of N workers
+ * would otherwise cause N back to back refreshes, each listing (and, before it finished, fetching) the whole registry,
+ * all run on the ZooKeeper event thread ahead of any session events queued behind them. Instead a single refresh is
+ * scheduled on the registry's own thread once events have stopped arriving for {@code coalesceWindow}, or at the latest
+ * {@code maxStaleness} after the first unhandled event, so a steady trickle of changes can't postpone it forever.
+ *
+ * Losing the connection to ZooKeeper doesn't take discovery down with it. While disconnected, reads keep getting the
+ * last snapshot straight away (with {@link #isConnected()} and {@link #getStaleness()} to tell how far to trust it)
+ * instead of waiting on, or failing with, a server that isn't there. Once reconnected, a single refresh brings the
+ * snapshot up to date. If the session expired in the meantime, our registration went with it; given a
+ * {@link SessionFactory}, the registry opens a new session, restores its watch and registers again under the same
+ * address.
+ *
+ * Workers can register {@link WorkerMetadata} rather than a plain address, and keep its load figures up to date (see
+ * {@link WorkerLoadReporter}). Load changes aren't membership changes, so they don't make new snapshots or reach the
+ * listeners; each changed znode is fetched again on its own, and the latest figures are in {@link #getWorkerLoads()}.
  */
 @FieldDefaults(level = AccessLevel.PRIVATE)
-public class ServiceRegistryDiscovery implements Watcher {
+public class ServiceRegistryDiscovery implements Watcher, AutoCloseable {
 
     private static final String SERVICE_REGISTRY = "/service_registry";
+    private static final Duration DEFAULT_COALESCE_WINDOW = Duration.ofMillis(50);
+    private static final Duration DEFAULT_MAX_STALENESS = Duration.ofMillis(500);
+    private static final long SESSION_RETRY_SECONDS = 1;
 
-    final ZooKeeper zooKeeper;
-    String serviceRegistryPath;
-    List<String> allServiceAddresses;
+    /**
+     * Opens a new session once the old one has expired. The registry has to be the new client's default watcher, so
+     * that it hears when the new session is established.
+     */
+    @FunctionalInterface
+    public interface SessionFactory {
+        ZooKeeper newSession(Watcher defaultWatcher) throws IOException;
+    }
+
+    // replaced when an expired session is renewed
+    volatile ZooKeeper zooKeeper;
+    final WatchMode watchMode;
+    // null if an expired session shouldn't be replaced
+    final SessionFactory sessionFactory;
+    final long coalesceWindowNanos;
+    final long maxStalenessNanos;
+    final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        val thread = new Thread(runnable, "service-registry-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+    final AtomicBoolean refreshScheduled = new AtomicBoolean();
+    final AtomicLong firstDirtyNanos = new AtomicLong();
+    final AtomicLong lastDirtyNanos = new AtomicLong();
+    final AtomicLong refreshGeneration = new AtomicLong();
+    final List<MembershipListener> listeners = new CopyOnWriteArrayList<>();
+    final AtomicBoolean renewingSession = new AtomicBoolean();
+    // set once the recursive watch has been asked for, in PERSISTENT mode
+    final AtomicBoolean watchingRegistry = new AtomicBoolean();
+    final AtomicLong disconnectedNanos = new AtomicLong();
+    volatile boolean connected;
+    // set once the session is one we opened ourselves, and so have to close
+    volatile boolean ownsSession;
+    long publishedGeneration;
+    volatile String serviceRegistryPath;
+    // what we registered with, so it can be registered again in a new session
+    volatile byte[] registeredData;
+    // worker znode -> its latest metadata
+    final Map<String, WorkerMetadata> workerMetadata = new ConcurrentHashMap<>();
+    // set when the metadata of known workers has to be fetched again too, for the data watches of a new session
+    volatile boolean refetchAllMetadata;
+    // null until the first refresh completes
+    volatile RegistrySnapshot snapshot;
+
+    public ServiceRegistryDiscovery(final ZooKeeper zooKeeper) throws InterruptedException, KeeperException {
+        this(zooKeeper, WatchMode.ONE_SHOT);
+    }
+
+    public ServiceRegistryDiscovery(final ZooKeeper zooKeeper, final WatchMode watchMode) throws InterruptedException, KeeperException {
+        this(zooKeeper, watchMode, DEFAULT_COALESCE_WINDOW, DEFAULT_MAX_STALENESS);
+    }
+
+    public ServiceRegistryDiscovery(final ZooKeeper zooKeeper, final WatchMode watchMode, final Duration coalesceWindow,
+                                    final Duration maxStaleness) throws InterruptedException, KeeperException {
+        this(zooKeeper, watchMode, coalesceWindow, maxStaleness, null);
+    }
 
-    public ServiceRegistryDiscovery(final ZooKeeper zooKeeper) throws InterruptedException {
+    public ServiceRegistryDiscovery(final ZooKeeper zooKeeper, final WatchMode watchMode, final Duration coalesceWindow,
+                                    final Duration maxStaleness, final SessionFactory sessionFactory) throws InterruptedException, KeeperException {
         this.zooKeeper = zooKeeper;
+        this.watchMode = watchMode;
+        this.sessionFactory = sessionFactory;
+        this.disconnectedNanos.set(System.nanoTime());
+        this.coalesceWindowNanos = coalesceWindow.toNanos();
+        this.maxStalenessNanos = maxStaleness.toNanos();
         createServiceRegistryZNode();
+        // connection state changes only reach the default watcher and watchers with a watch set. A registry that only
+        // registers never lists the children, so it gets a watch on the registry znode itself, which practically
+        // never fires.
+        zooKeeper.exists(SERVICE_REGISTRY, this);
+        syncConnectionState();
     }
 
     public void registerUpdates() {
+        updateAddresses().exceptionally(this::printStackTrace);
+    }
+
+    /**
+     * Only blocks if no refresh has completed yet. Since the refresh callbacks are delivered on the ZooKeeper event
+     * thread, this must not be called from a {@code Watcher} or callback the first time round. While disconnected,
+     * the last snapshot is returned as it is, see {@link #getStaleness()}.
+     *
+     * @throws KeeperException.ConnectionLossException if disconnected before any snapshot was taken
+     */
+    public List<String> getAllServiceAddresses() throws KeeperException, InterruptedException {
+        return getSnapshot().getAddresses();
+    }
+
+    public RegistrySnapshot getSnapshot() throws KeeperException, InterruptedException {
+        val current = this.snapshot;
+        if(nonNull(current)) return current;
+        // rather than waiting for as long as the outage lasts
+        if(!connected) throw new KeeperException.ConnectionLossException();
         try {
-            updateAddresses();
-        } catch (final KeeperException | InterruptedException e) {
-            e.printStackTrace();
+            return updateAddresses().get();
+        } catch (final ExecutionException e) {
+            if(e.getCause() instanceof KeeperException) throw (KeeperException) e.getCause();
+            throw new IllegalStateException(e.getCause());
         }
     }
 
-    public synchronized List<String> getAllServiceAddresses() throws KeeperException, InterruptedException {
-        if(isNull(allServiceAddresses)) {
-            updateAddresses();
+    /**
+     * @return the latest metadata of every registered worker, by address. Workers that registered a plain address
+     * are in there too, with {@link WorkerMetadata#isLoadKnown()} false.
+     */
+    public Map<String, WorkerMetadata> getWorkerLoads() {
+        val current = this.snapshot;
+        if(isNull(current)) return Map.of();
+        val loads = new HashMap<String, WorkerMetadata>(current.getMembers().size());
+        for(val workerZNode : current.getMembers().keySet()) {
+            val metadata = workerMetadata.get(workerZNode);
+            if(nonNull(metadata)) loads.put(metadata.getAddress(), metadata);
         }
-        return this.allServiceAddresses;
+        return loads;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return zero while connected, since the watches keep the snapshot up to date (give or take the coalesce
+     * window). Otherwise, how long ago the connection was lost, and so how out of date the snapshot could be.
+     */
+    public Duration getStaleness() {
+        if(connected) return Duration.ZERO;
+        return Duration.ofNanos(System.nanoTime() - disconnectedNanos.get());
+    }
+
+    /**
+     * Listeners are called on the registry's refresh thread, one change at a time. They shouldn't block for long,
+     * since the next refresh waits for them.
+     */
+    public void addMembershipListener(final MembershipListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeMembershipListener(final MembershipListener listener) {
+        listeners.remove(listener);
     }
 
     public void unregisterFromCluster() {
@@ -51,6 +212,8 @@ public class ServiceRegistryDiscovery implements Watcher {
             if(nonNull(this.serviceRegistryPath) && nonNull(zooKeeper.exists(serviceRegistryPath, false))) {
                 zooKeeper.delete(serviceRegistryPath, -1);
             }
+            this.serviceRegistryPath = null;
+            this.registeredData = null;
         } catch (final InterruptedException | KeeperException e) {
             e.printStackTrace();
         }
@@ -71,31 +234,367 @@ public class ServiceRegistryDiscovery implements Watcher {
     }
 
     public void registerToCluster(final String metaData) throws KeeperException, InterruptedException {
+        register(metaData.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void registerToCluster(final WorkerMetadata metadata) throws KeeperException, InterruptedException {
+        register(metadata.encode());
+    }
+
+    /**
+     * @return the session this registry currently works in, which changes when an expired one is replaced
+     */
+    ZooKeeper getZooKeeper() {
+        return zooKeeper;
+    }
+
+    /**
+     * @return our registration's znode, or null if not registered
+     */
+    String getServiceRegistryPath() {
+        return serviceRegistryPath;
+    }
+
+    private void register(final byte[] data) throws KeeperException, InterruptedException {
         // register this instance ephemerally. if the nodes fails/disconnects, we tear down the service registry for it.
-        this.serviceRegistryPath = zooKeeper.create(SERVICE_REGISTRY + "/n_", metaData.getBytes(), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        this.serviceRegistryPath = zooKeeper.create(SERVICE_REGISTRY + "/n_", data, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        this.registeredData = data;
+    }
+
+    /*
+     Rather than a blocking `exists` + `getData` per child, one after the other (2N round trips), every `getData` is
+     sent at once through the async API, and the results are collected as the callbacks come in: about one round trip,
+     however many workers there are. `getData` already hands back the Stat, and reports NONODE for a child that went
+     away after `getChildren` (the same race the old `exists` check was guarding against), so `exists` isn't needed.
+
+     Only children we don't already know about are fetched at all. A registered address never changes once
+     written, so for everyone else the listing alone is enough to know they are still there. Their load figures do
+     change, but those are picked up by the data watches (see refetchMetadata), not by refreshes.
+
+     Nothing here waits. The callbacks are delivered on the ZooKeeper event thread, which is also the thread `process`
+     is called on, so blocking on them from there would deadlock. All they do is hand the results over to the refresh
+     thread, where the diffing and publishing happen.
+     */
+    private CompletableFuture<RegistrySnapshot> updateAddresses() {
+        val refresh = new CompletableFuture<RegistrySnapshot>();
+        val generation = refreshGeneration.incrementAndGet();
+        watchRegistry();
+
+        // with a persistent watch in place, the listing doesn't need to (and shouldn't) set one of its own
+        val childWatcher = watchMode == WatchMode.ONE_SHOT ? this : null;
+        zooKeeper.getChildren(SERVICE_REGISTRY, childWatcher, (rc, path, ctx, workerZNodes) -> {
+            val code = KeeperException.Code.get(rc);
+            if(code != KeeperException.Code.OK) {
+                refresh.completeExceptionally(KeeperException.create(code, path));
+                return;
+            }
+            onRefresher(() -> fetchAddedAddresses(workerZNodes, generation, refresh));
+        }, null);
+
+        return refresh;
     }
 
-    private synchronized void updateAddresses() throws KeeperException, InterruptedException {
-        val workerZNodes = zooKeeper.getChildren(SERVICE_REGISTRY, this);
-        val addresses = new ArrayList<String>(workerZNodes.size());
-        for(val workZNode : workerZNodes) {
-            val fullPath = SERVICE_REGISTRY + "/" + workZNode;
-            // potential for race condition here, where a node that we were told about in the `getChildren` call
-            // has gone down
-            val stat = zooKeeper.exists(fullPath, false);
-            if(isNull(stat)) continue;
+    /*
+     Requests on a session are handled in order, so the watch is in place before the listing that follows it is taken,
+     and nothing between the two can be missed. Recursive, so that the children's own events (including data
+     changes) are delivered too.
+     */
+    private void watchRegistry() {
+        if(watchMode != WatchMode.PERSISTENT || !watchingRegistry.compareAndSet(false, true)) return;
+        zooKeeper.addWatch(SERVICE_REGISTRY, this, AddWatchMode.PERSISTENT_RECURSIVE, (rc, path, ctx) -> {
+            val code = KeeperException.Code.get(rc);
+            if(code != KeeperException.Code.OK) {
+                // so that the next refresh asks again
+                watchingRegistry.set(false);
+                printStackTrace(KeeperException.create(code, path));
+            }
+        }, null);
+    }
+
+    private void fetchAddedAddresses(final List<String> workerZNodes, final long generation, final CompletableFuture<RegistrySnapshot> refresh) {
+        val refetchAll = refetchAllMetadata;
+        refetchAllMetadata = false;
+        val known = isNull(snapshot) || refetchAll ? RegistrySnapshot.EMPTY.getMembers() : snapshot.getMembers();
 
-            addresses.add(new String(zooKeeper.getData(fullPath, false, stat)));
+        val members = new HashMap<String, String>(workerZNodes.size());
+        val added = new ArrayList<String>();
+        for(val workerZNode : workerZNodes) {
+            val address = known.get(workerZNode);
+            if(nonNull(address)) members.put(workerZNode, address);
+            else added.add(workerZNode);
+        }
+        if(added.isEmpty()) {
+            publish(members, generation, refresh);
+            return;
+        }
+
+        val remaining = new AtomicInteger(added.size());
+        for(val workerZNode : added) {
+            zooKeeper.getData(SERVICE_REGISTRY + "/" + workerZNode, dataWatcher(), (rc, path, ctx, bytes, stat) -> {
+                val code = KeeperException.Code.get(rc);
+                if(code == KeeperException.Code.OK) {
+                    val metadata = decode(bytes);
+                    workerMetadata.put(workerZNode, metadata);
+                    members.put(workerZNode, metadata.getAddress());
+                } else if(code != KeeperException.Code.NONODE) { // NONODE: the worker went down since getChildren
+                    refresh.completeExceptionally(KeeperException.create(code, path));
+                }
+
+                if(remaining.decrementAndGet() == 0 && !refresh.isDone()) {
+                    onRefresher(() -> publish(members, generation, refresh));
+                }
+            }, null);
+        }
+    }
+
+    /*
+     Publishing only ever happens on the single refresh thread, so no locking is needed between publishers. The only
+     concern is overlapping refreshes: an older one finishing late must not overwrite a newer one.
+     */
+    private void publish(final Map<String, String> members, final long generation, final CompletableFuture<RegistrySnapshot> refresh) {
+        if(generation < publishedGeneration) {
+            refresh.complete(snapshot);
+            return;
+        }
+        this.publishedGeneration = generation;
+
+        val previous = isNull(snapshot) ? RegistrySnapshot.EMPTY : snapshot;
+        val added = new HashMap<String, String>();
+        for(val entry : members.entrySet()) {
+            if(!previous.getMembers().containsKey(entry.getKey())) added.put(entry.getKey(), entry.getValue());
+        }
+        val removed = new HashMap<String, String>(previous.getMembers());
+        removed.keySet().removeAll(new HashSet<>(members.keySet()));
+        workerMetadata.keySet().removeAll(removed.keySet());
+
+        if(nonNull(snapshot) && added.isEmpty() && removed.isEmpty()) {
+            refresh.complete(snapshot);
+            return;
+        }
+
+        val next = new RegistrySnapshot(previous.getVersion() + 1, members);
+        this.snapshot = next;
+        refresh.complete(next);
+        for(val listener : listeners) {
+            listener.onMembershipChanged(added, removed, next);
+        }
+    }
+
+    /*
+     The callbacks of requests still in flight, and the session's last events, can come in after close, with nothing
+     left to run them. Checking isShutdown first wouldn't do: close can still land between the check and the hand-over,
+     and the rejection would then be thrown on the ZooKeeper event thread.
+     */
+    private void onRefresher(final Runnable task) {
+        try {
+            refresher.execute(task);
+        } catch (final RejectedExecutionException ignored) {
+            // closed in the meantime
+        }
+    }
+
+    private void onRefresher(final Runnable task, final long delay, final TimeUnit unit) {
+        try {
+            refresher.schedule(task, delay, unit);
+        } catch (final RejectedExecutionException ignored) {
+            // closed in the meantime
+        }
+    }
+
+    private <T> T printStackTrace(final Throwable e) {
+        // once closed, requests failing along with the session are expected
+        if(!refresher.isShutdown()) e.printStackTrace();
+        return null;
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+        if(ownsSession) {
+            try {
+                zooKeeper.close();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        this.allServiceAddresses = Collections.unmodifiableList(addresses);
     }
 
     @Override
     public void process(final WatchedEvent event) {
+        // the session's last events can still arrive after close
+        if(refresher.isShutdown()) return;
+        if(event.getType() == Event.EventType.None) {
+            onConnectionStateChanged(event.getState());
+            return;
+        }
+        if(event.getType() == Event.EventType.NodeDataChanged && isRegistryChild(event.getPath())) {
+            refetchMetadata(event.getPath());
+            return;
+        }
+        if(watchMode == WatchMode.PERSISTENT && !isRegistryMembershipChange(event)) return;
+        markDirty();
+    }
+
+    /*
+     Runs on the ZooKeeper event thread, like the rest of `process`. Anything that talks to ZooKeeper is handed over to
+     the refresh thread.
+
+     On a reconnect within the session timeout, the session, our registration and our watches are all still there
+     (the client sets the watches again itself), so the snapshot just needs catching up with whatever happened while
+     we were away. That goes through markDirty, so it is one refresh together with the watch events that usually
+     arrive right behind the reconnect.
+     */
+    private synchronized void onConnectionStateChanged(final Event.KeeperState state) {
+        switch (state) {
+            case SyncConnected:
+                if(connected) return;
+                connected = true;
+                if(renewingSession.compareAndSet(true, false)) {
+                    onRefresher(this::restoreSession);
+                } else {
+                    markDirty();
+                }
+                break;
+            case Disconnected:
+                markDisconnected();
+                break;
+            case Expired:
+                markDisconnected();
+                if(nonNull(sessionFactory) && renewingSession.compareAndSet(false, true)) {
+                    onRefresher(this::renewSession);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /*
+     A client that was still connecting when it was handed to us delivered its SyncConnected before we were watching
+     anything, so we never heard it. Now that the exists watch is in place, every later change of state is delivered to
+     process(). The client updates its state before it queues the event, and the state is read here under the same
+     lock the events are handled under, so an event is either already reflected in the read, or applied after it.
+     */
+    private synchronized void syncConnectionState() {
+        if(zooKeeper.getState().isConnected()) connected = true;
+    }
+
+    private void markDisconnected() {
+        if(!connected) return;
+        disconnectedNanos.set(System.nanoTime());
+        connected = false;
+    }
+
+    // on the refresh thread. The new session's SyncConnected event is what moves things on to restoreSession.
+    private void renewSession() {
         try {
-            updateAddresses();
+            val previous = this.zooKeeper;
+            this.zooKeeper = sessionFactory.newSession(this);
+            if(ownsSession) previous.close();
+            this.ownsSession = true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            onRefresher(this::renewSession, SESSION_RETRY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /*
+     On the refresh thread, so the blocking calls are fine. The watches and the ephemeral registration of the expired
+     session are gone, and are set up again on the new one before the refresh.
+     */
+    private void restoreSession() {
+        try {
+            if(watchingRegistry.get()) {
+                zooKeeper.addWatch(SERVICE_REGISTRY, this, AddWatchMode.PERSISTENT_RECURSIVE);
+            }
+            val data = this.registeredData;
+            if(nonNull(data)) register(data);
         } catch (final KeeperException | InterruptedException e) {
             e.printStackTrace();
         }
+        // the data watches went with the old session too
+        refetchAllMetadata = true;
+        registerUpdates();
+    }
+
+    /*
+     A worker's load figures changed. Only its own znode is fetched again, straight from the event thread since nothing
+     waits on it, and only if it is a member we know about: a persistent watch reports every worker's writes, including
+     ones the refresh hasn't listed yet (that refresh fetches them anyway) or has already dropped. The member check is
+     made again in the callback, as a late reply must not bring back a worker that has left in the meantime.
+     */
+    private void refetchMetadata(final String path) {
+        val workerZNode = path.substring(SERVICE_REGISTRY.length() + 1);
+        if(!workerMetadata.containsKey(workerZNode)) return;
+        zooKeeper.getData(path, dataWatcher(), (rc, p, ctx, bytes, stat) -> {
+            val code = KeeperException.Code.get(rc);
+            if(code == KeeperException.Code.OK) {
+                workerMetadata.computeIfPresent(workerZNode, (key, previous) -> decode(bytes));
+            } else if(code != KeeperException.Code.NONODE) {
+                printStackTrace(KeeperException.create(code, p));
+            }
+        }, null);
+    }
+
+    // with a persistent recursive watch in place, data changes are reported anyway
+    private Watcher dataWatcher() {
+        return watchMode == WatchMode.ONE_SHOT ? this : null;
+    }
+
+    private static WorkerMetadata decode(final byte[] data) {
+        try {
+            return WorkerMetadata.decode(data);
+        } catch (final IllegalArgumentException e) {
+            // better to know the worker without its load than not at all
+            return WorkerMetadata.ofAddress(new String(data, StandardCharsets.UTF_8));
+        }
+    }
+
+    private void markDirty() {
+        val now = System.nanoTime();
+        lastDirtyNanos.set(now);
+        firstDirtyNanos.compareAndSet(0, now);
+        if(refreshScheduled.compareAndSet(false, true)) {
+            onRefresher(this::refreshIfSettled, coalesceWindowNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /*
+     Runs on the refresh thread. If events are still coming in, wait for them to settle, but never for longer than
+     maxStaleness in total. The dirty markers are cleared before the refresh is sent, so an event that lands while it
+     is in flight schedules another one rather than being lost.
+     */
+    private void refreshIfSettled() {
+        val now = System.nanoTime();
+        val untilQuiet = lastDirtyNanos.get() + coalesceWindowNanos - now;
+        val untilStale = firstDirtyNanos.get() + maxStalenessNanos - now;
+        if(untilQuiet > 0 && untilStale > 0) {
+            onRefresher(this::refreshIfSettled, Math.min(untilQuiet, untilStale), TimeUnit.NANOSECONDS);
+            return;
+        }
+
+        firstDirtyNanos.set(0);
+        refreshScheduled.set(false);
+        registerUpdates();
+    }
+
+    /*
+     The recursive watch reports every event under the registry, as well as connection state changes. Only a worker
+     znode appearing or disappearing changes the membership.
+     */
+    private static boolean isRegistryMembershipChange(final WatchedEvent event) {
+        switch (event.getType()) {
+            case NodeCreated:
+            case NodeDeleted:
+                return isRegistryChild(event.getPath());
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isRegistryChild(final String path) {
+        return nonNull(path) && path.startsWith(SERVICE_REGISTRY + "/") && path.indexOf('/', SERVICE_REGISTRY.length() + 1) < 0;
     }
 }
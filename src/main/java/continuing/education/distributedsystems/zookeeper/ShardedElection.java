@@ -0,0 +1,285 @@
+package continuing.education.distributedsystems.zookeeper;
+
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+import org.apache.zookeeper.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static java.util.Objects.isNull;
+import static java.util.Objects.nonNull;
+
+/**
+ * Leader election over {@code shards} independent groups, so leader-only work can be split across the cluster instead
+ * of all landing on whichever node won the single {@link ZooKeeperElection}.
+ *
+ * Every node registers an ephemeral znode under {@code /sharded_election/members}, and takes part in every shard. The
+ * leader of a shard is whoever holds its ephemeral lock znode {@code /sharded_election/leaders/shard-<i>}. Which node
+ * *should* hold it is decided by rendezvous (highest random weight) hashing: each node scores
+ * {@code hash(node, shard)}, and the highest score wins. Every node computes the same answer from the same member list,
+ * with no coordination, shards are spread evenly, and when a node joins or leaves, only the shards it wins or loses
+ * move; everything else stays where it is.
+ *
+ * Handoff: a node claims the locks of the shards it is preferred for, and gives up the ones it no longer is (after
+ * telling its callback). A claim that finds the lock still held just waits for the deletion. If a leader crashes, its
+ * locks go with its session, and the next preferred node takes over.
+ *
+ * A create that reaches the server but whose reply is lost (connection loss) leaves a lock that is ours without us
+ * knowing it. Every other rebalance would find it taken, and wait for a deletion that never comes. So a lock found
+ * taken is checked for its owner, and adopted if it is our own session. Likewise a lock whose deletion failed is
+ * deleted again by the next rebalance, so it isn't left behind blocking the shard's new leader. A lock is only ever
+ * deleted after checking that it is ours: a deletion whose reply was lost may have gone through, and the lock at that
+ * path may by now be the new leader's.
+ *
+ * The locks are only ours for as long as our session is. When it expires, the other nodes take our shards over, so
+ * every shard we led is revoked through the callback. A disconnect can't be told apart from an expiry until the
+ * connection is back: by the time it is reported, up to two thirds of the session timeout may have passed without
+ * word from the server, and the rest can run out before we hear anything more. So leadership is suspended (revoked
+ * through the callback) as soon as the connection is lost. If the session survives, the next rebalance finds the
+ * locks still ours and adopts them again, or deletes the ones we are no longer preferred for.
+ *
+ * One persistent recursive watch on the root covers both members and locks. Rebalancing happens on a dedicated thread,
+ * never the ZooKeeper event thread, and a burst of events only leaves one rebalance pending. A shard that fails to
+ * claim or release doesn't hold up the others; the rebalance goes on, and runs again after {@code RETRY_SECONDS}.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ShardedElection implements Watcher, AutoCloseable {
+
+    private static final String ROOT = "/sharded_election";
+    private static final String MEMBERS = ROOT + "/members";
+    private static final String LEADERS = ROOT + "/leaders";
+    private static final long RETRY_SECONDS = 1;
+
+    OnElectionCallback callback;
+    ZooKeeper zk;
+    String nodeId;
+    int shards;
+    Set<Integer> ledShards = ConcurrentHashMap.newKeySet();
+    // given up, but the lock's deletion failed, so it may still be there. Only touched on the election thread.
+    Set<Integer> unreleasedLocks = new HashSet<>();
+    AtomicBoolean rebalancePending = new AtomicBoolean();
+    ScheduledExecutorService electionThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        val thread = new Thread(runnable, "sharded-election");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param nodeId has to be unique in the cluster, and stable across restarts, if shards should go back to the node
+     *               that used to lead them
+     */
+    public ShardedElection(final OnElectionCallback callback, final ZooKeeper zk, final String nodeId, final int shards) {
+        if(shards < 1) throw new IllegalArgumentException("shards must be at least 1, was " + shards);
+        this.callback = callback;
+        this.zk = zk;
+        this.nodeId = nodeId;
+        this.shards = shards;
+    }
+
+    /**
+     * Joins the election, and waits for the first rebalance, so on return the node already leads the shards that
+     * nobody else was holding.
+     */
+    public void volunteerForLeadership() throws KeeperException, InterruptedException {
+        createIfAbsent(ROOT);
+        createIfAbsent(MEMBERS);
+        createIfAbsent(LEADERS);
+        // in place before our member znode exists, so no change to the membership after it can be missed
+        zk.addWatch(ROOT, this, AddWatchMode.PERSISTENT_RECURSIVE);
+        zk.create(MEMBERS + "/" + nodeId, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+
+        try {
+            electionThread.submit(this::rebalance).get();
+        } catch (final ExecutionException e) {
+            if(e.getCause() instanceof KeeperException) throw (KeeperException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return the shards this node currently leads
+     */
+    public Set<Integer> getLedShards() {
+        return Set.copyOf(ledShards);
+    }
+
+    /**
+     * @return the node the shard should go to, given the members. Deterministic, so every node agrees on it.
+     */
+    static String preferredNode(final int shard, final Iterable<String> members) {
+        String best = null;
+        long bestScore = 0;
+        for(val member : members) {
+            val score = Hashing.mix64(Hashing.fnv1a64(member) ^ Hashing.mix64(shard));
+            // ties are practically impossible, but must still be broken the same way everywhere
+            if(best == null || Long.compareUnsigned(score, bestScore) > 0
+                    || (score == bestScore && member.compareTo(best) < 0)) {
+                best = member;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void close() {
+        electionThread.shutdownNow();
+    }
+
+    @Override
+    public void process(final WatchedEvent event) {
+        switch (event.getType()) {
+            case None:
+                onConnectionStateChanged(event.getState());
+                return;
+            case NodeCreated:
+            case NodeDeleted:
+                if(!isMemberOrLock(event.getPath())) return;
+                scheduleRebalance(0);
+        }
+    }
+
+    // everything already reported will be seen by the rebalance that is still waiting to run
+    private void scheduleRebalance(final long delaySeconds) {
+        if(electionThread.isShutdown() || !rebalancePending.compareAndSet(false, true)) return;
+        electionThread.schedule(() -> {
+            rebalancePending.set(false);
+            try {
+                rebalance();
+            } catch (final KeeperException e) {
+                e.printStackTrace();
+                retryLater();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    private void retryLater() {
+        // an expired session has taken our membership with it, there's nothing left to retry with
+        if(zk.getState().isAlive()) scheduleRebalance(RETRY_SECONDS);
+    }
+
+    // on the ZooKeeper event thread, so anything touching the shards is handed over to the election thread
+    private void onConnectionStateChanged(final Event.KeeperState state) {
+        switch (state) {
+            case Disconnected:
+                onElectionThread(() -> revokeAll(false));
+                break;
+            case Expired:
+                onElectionThread(() -> revokeAll(true));
+                break;
+            case SyncConnected:
+                // still the same session, so whatever locks we hold are still ours to adopt or give up
+                scheduleRebalance(0);
+                break;
+        }
+    }
+
+    private void revokeAll(final boolean sessionGone) {
+        for(val shard : ledShards) {
+            callback.onShardLeadershipRevoked(shard);
+            ledShards.remove(shard);
+            // with the session still around, so is the lock, and the next rebalance has to adopt or delete it
+            if(!sessionGone) unreleasedLocks.add(shard);
+        }
+        // the locks went with the session
+        if(sessionGone) unreleasedLocks.clear();
+    }
+
+    private void onElectionThread(final Runnable task) {
+        try {
+            electionThread.execute(task);
+        } catch (final RejectedExecutionException ignored) {
+            // closed in the meantime
+        }
+    }
+
+    // on the election thread, so the blocking API is fine here
+    private Void rebalance() throws KeeperException, InterruptedException {
+        final List<String> members = zk.getChildren(MEMBERS, false);
+        val sortedMembers = new TreeSet<>(members);
+
+        boolean failed = false;
+        for(int shard = 0; shard < shards; shard++) {
+            val preferred = nodeId.equals(preferredNode(shard, sortedMembers));
+            val leading = ledShards.contains(shard);
+            try {
+                if(preferred && !leading) {
+                    tryClaim(shard);
+                } else if(!preferred && (leading || unreleasedLocks.contains(shard))) {
+                    release(shard);
+                }
+            } catch (final KeeperException e) {
+                // on to the other shards, this one is tried again later
+                e.printStackTrace();
+                failed = true;
+            }
+        }
+        if(failed) retryLater();
+        return null;
+    }
+
+    private void tryClaim(final int shard) throws KeeperException, InterruptedException {
+        try {
+            zk.create(lockPath(shard), nodeId.getBytes(StandardCharsets.UTF_8), ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+        } catch (final KeeperException.NodeExistsException e) {
+            val lock = zk.exists(lockPath(shard), false);
+            // the previous leader hasn't let go yet; its deletion will trigger another rebalance
+            if(isNull(lock) || lock.getEphemeralOwner() != zk.getSessionId()) return;
+            // ours after all, from a create whose reply was lost, or a deletion that failed
+        }
+        unreleasedLocks.remove(shard);
+        ledShards.add(shard);
+        callback.onElectedToBeLeader(shard);
+    }
+
+    private void release(final int shard) throws KeeperException, InterruptedException {
+        if(ledShards.contains(shard)) {
+            // stop the leader work first, so there is never a moment with two leaders working on the shard
+            callback.onShardLeadershipRevoked(shard);
+            ledShards.remove(shard);
+        }
+        unreleasedLocks.add(shard);
+        // only ever our own lock: if an earlier deletion went through without us hearing back, the lock there now may
+        // already be the new leader's. Nobody else deletes our lock, so it can't change between the check and the delete.
+        val lock = zk.exists(lockPath(shard), false);
+        if(nonNull(lock) && lock.getEphemeralOwner() == zk.getSessionId()) {
+            try {
+                zk.delete(lockPath(shard), lock.getVersion());
+            } catch (final KeeperException.NoNodeException ignored) {
+                // already gone, with our session
+            }
+        }
+        unreleasedLocks.remove(shard);
+    }
+
+    private void createIfAbsent(final String path) throws KeeperException, InterruptedException {
+        try {
+            zk.create(path, new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } catch (final KeeperException.NodeExistsException ignored) {
+            // another node got there first
+        }
+    }
+
+    private static boolean isMemberOrLock(final String path) {
+        return path.startsWith(MEMBERS + "/") || path.startsWith(LEADERS + "/");
+    }
+
+    private static String lockPath(final int shard) {
+        return LEADERS + "/shard-" + shard;
+    }
+}
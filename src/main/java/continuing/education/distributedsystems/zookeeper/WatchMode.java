@@ -0,0 +1,18 @@
+package continuing.education.distributedsystems.zookeeper;
+
+/**
+ * How our watchers get registered with ZooKeeper.
+ *
+ * ONE_SHOT: the classic {@code exists}/{@code getData}/{@code getChildren} watches. Each fires once and is then gone, so
+ * it has to be set again on every event, which costs a round trip each time, and anything that changes between the
+ * event firing and the watch being set again goes unnoticed until the next read.
+ *
+ * PERSISTENT: a single {@code addWatch} (ZooKeeper 3.6+) per subtree, in {@code AddWatchMode.PERSISTENT} or
+ * {@code PERSISTENT_RECURSIVE} mode. It stays registered across events (and across reconnects), so every change is
+ * delivered and nothing needs to be set again. Note that recursive watches report {@code NodeCreated}/{@code NodeDeleted}
+ * for the children themselves rather than {@code NodeChildrenChanged} on the parent.
+ */
+public enum WatchMode {
+    ONE_SHOT,
+    PERSISTENT
+}
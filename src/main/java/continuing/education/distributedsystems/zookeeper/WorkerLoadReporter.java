@@ -0,0 +1,211 @@
+package continuing.education.distributedsystems.zookeeper;
+
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Value;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static java.util.Objects.isNull;
+
+/**
+ * Keeps the {@link WorkerMetadata} of this process' registrations up to date in the registry, without the ZooKeeper
+ * write load growing with how busy the workers are.
+ *
+ * Every {@code interval}, each registration's load is sampled, but only written if it has moved far enough to matter
+ * to a scheduler: capacity changed, queue depth by {@code queueDepthThreshold} or more, or recent latency by more than
+ * {@code latencyThreshold} (relative). Small wobbles aren't worth a write, and a write that is skipped is also a
+ * notification and a fetch skipped in every registry watching the worker. So that a lost write can't leave stale
+ * figures around for good, everything is written at least every {@code maxSilence}.
+ *
+ * All the writes of one round go out together as a single {@code multi()}: one round trip and one transaction (a
+ * single log append and fsync on the server), however many registrations there are. At most one write per
+ * {@code interval} per session, whatever happens to the load.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class WorkerLoadReporter implements AutoCloseable {
+
+    @Value
+    @Builder
+    public static class Settings {
+        @Builder.Default Duration interval = Duration.ofSeconds(1);
+        @Builder.Default int queueDepthThreshold = 2;
+        @Builder.Default double latencyThreshold = 0.25;
+        @Builder.Default Duration maxSilence = Duration.ofSeconds(30);
+
+        public static Settings defaults() {
+            return Settings.builder().build();
+        }
+    }
+
+    Settings settings;
+    List<Registration> registrations = new CopyOnWriteArrayList<>();
+    LongAdder batches = new LongAdder();
+    LongAdder writes = new LongAdder();
+    LongAdder skipped = new LongAdder();
+    ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        val thread = new Thread(runnable, "worker-load-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public WorkerLoadReporter(final Settings settings) {
+        this.settings = settings;
+        val intervalNanos = settings.getInterval().toNanos();
+        sampler.scheduleAtFixedRate(this::report, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param registry where the worker is registered. Whatever its current registration is gets updated, so this
+     *                 keeps working after the registry registers again in a new session.
+     * @param load     samples the worker's current load, called on the reporter's thread
+     */
+    public void track(final ServiceRegistryDiscovery registry, final Supplier<WorkerMetadata> load) {
+        registrations.add(new Registration(registry, load));
+    }
+
+    /**
+     * @return how many multi() calls were sent
+     */
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    /**
+     * @return how many registrations were written, over all batches
+     */
+    public long getWrites() {
+        return writes.sum();
+    }
+
+    /**
+     * @return how many samples were not written, since they hadn't changed enough
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    @Override
+    public void close() {
+        sampler.shutdownNow();
+    }
+
+    private void report() {
+        val now = System.nanoTime();
+        // a multi() has to stay within one session, and registries can each have their own
+        val bySession = new IdentityHashMap<ZooKeeper, List<Write>>();
+        for(val registration : registrations) {
+            val path = registration.registry.getServiceRegistryPath();
+            if(isNull(path)) continue;
+
+            final WorkerMetadata sample;
+            try {
+                sample = registration.load.get();
+            } catch (final RuntimeException e) {
+                e.printStackTrace();
+                continue;
+            }
+            if(!registration.needsWrite(path, sample, now)) {
+                skipped.increment();
+                continue;
+            }
+            bySession.computeIfAbsent(registration.registry.getZooKeeper(), ignored -> new ArrayList<>())
+                    .add(new Write(registration, path, sample));
+        }
+        bySession.forEach(this::send);
+    }
+
+    private void send(final ZooKeeper zooKeeper, final List<Write> batch) {
+        val ops = new ArrayList<Op>(batch.size());
+        for(val write : batch) ops.add(Op.setData(write.path, write.sample.encode(), -1));
+
+        batches.increment();
+        zooKeeper.multi(ops, (rc, path, ctx, results) -> {
+            val code = KeeperException.Code.get(rc);
+            if(code == KeeperException.Code.OK) {
+                val writtenNanos = System.nanoTime();
+                for(val write : batch) write.registration.written(write.path, write.sample, writtenNanos);
+                writes.add(batch.size());
+                return;
+            }
+
+            // a multi() is all or nothing. A registration whose znode is gone (unregistered, or its session expired)
+            // fails the whole batch, so it is left out until it has a new znode; the rest go out again next round.
+            if(results != null) {
+                for(int i = 0; i < results.size() && i < batch.size(); i++) {
+                    val result = results.get(i);
+                    if(result instanceof OpResult.ErrorResult
+                            && ((OpResult.ErrorResult) result).getErr() == KeeperException.Code.NONODE.intValue()) {
+                        batch.get(i).registration.gone(batch.get(i).path);
+                    }
+                }
+            }
+            if(code != KeeperException.Code.NONODE) {
+                KeeperException.create(code, path).printStackTrace();
+            }
+        }, null);
+    }
+
+    @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+    private class Registration {
+        ServiceRegistryDiscovery registry;
+        Supplier<WorkerMetadata> load;
+        // set on the event thread once a write lands, read on the reporter's thread
+        @NonFinal volatile WorkerMetadata lastWritten;
+        @NonFinal volatile String lastWrittenPath;
+        @NonFinal volatile long lastWrittenNanos;
+        @NonFinal volatile String gonePath;
+
+        Registration(final ServiceRegistryDiscovery registry, final Supplier<WorkerMetadata> load) {
+            this.registry = registry;
+            this.load = load;
+        }
+
+        boolean needsWrite(final String path, final WorkerMetadata sample, final long now) {
+            if(path.equals(gonePath)) return false;
+            val last = lastWritten;
+            // a new znode was registered with whatever the load was back then
+            if(isNull(last) || !path.equals(lastWrittenPath)) return true;
+            if(now - lastWrittenNanos >= settings.getMaxSilence().toNanos()) return true;
+            if(sample.getCapacity() != last.getCapacity() || !sample.getAddress().equals(last.getAddress())) return true;
+            if(Math.abs(sample.getQueueDepth() - last.getQueueDepth()) >= settings.getQueueDepthThreshold()) return true;
+
+            val lastLatency = last.getRecentLatencyMicros();
+            if(lastLatency == 0) return sample.getRecentLatencyMicros() != 0;
+            return Math.abs(sample.getRecentLatencyMicros() - lastLatency) > settings.getLatencyThreshold() * lastLatency;
+        }
+
+        void written(final String path, final WorkerMetadata sample, final long writtenNanos) {
+            this.lastWrittenPath = path;
+            this.lastWritten = sample;
+            this.lastWrittenNanos = writtenNanos;
+        }
+
+        void gone(final String path) {
+            this.gonePath = path;
+        }
+    }
+
+    @Value
+    private static class Write {
+        Registration registration;
+        String path;
+        WorkerMetadata sample;
+    }
+}
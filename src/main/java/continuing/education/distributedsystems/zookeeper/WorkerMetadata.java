@@ -0,0 +1,120 @@
+package continuing.education.distributedsystems.zookeeper;
+
+import lombok.Value;
+import lombok.val;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * What a worker's registry znode holds: its address, plus enough about its load for a scheduler to prefer the idle
+ * ones.
+ *
+ * The encoding is kept small, since every change is a ZooKeeper write, and every registry watching the worker fetches
+ * it again: a magic byte, a version byte, the numbers as unsigned varints (one or two bytes each for typical values),
+ * then the address as length-prefixed UTF-8. About 30 bytes for a typical worker, where the same thing as JSON would
+ * be three times that. Fields are only ever appended to the end, so older readers can ignore what comes after the
+ * ones they know about.
+ *
+ * Registrations that are just a plain address string, as written by {@link ServiceRegistryDiscovery#registerToCluster(String)},
+ * decode to a capacity of 0, meaning the load is unknown.
+ */
+@Value
+public class WorkerMetadata {
+
+    // 0xFE never appears in UTF-8, so encoded metadata can't be mistaken for a plain address
+    private static final byte MAGIC = (byte) 0xFE;
+    private static final byte VERSION = 1;
+
+    String address;
+    // how many tasks the worker can work on at once, 0 if unknown
+    int capacity;
+    // tasks running or waiting
+    int queueDepth;
+    long recentLatencyMicros;
+
+    public static WorkerMetadata ofAddress(final String address) {
+        return new WorkerMetadata(address, 0, 0, 0);
+    }
+
+    public boolean isLoadKnown() {
+        return capacity > 0;
+    }
+
+    /**
+     * @return queue depth relative to capacity: below 1 the worker has idle slots, above 1 tasks are waiting
+     */
+    public double getUtilization() {
+        return isLoadKnown() ? (double) queueDepth / capacity : 0;
+    }
+
+    public byte[] encode() {
+        if(capacity < 0 || queueDepth < 0 || recentLatencyMicros < 0) {
+            throw new IllegalArgumentException("Load figures can't be negative: " + this);
+        }
+        val addressBytes = address.getBytes(StandardCharsets.UTF_8);
+        val buffer = new byte[2 + 5 + 5 + 10 + 5 + addressBytes.length];
+        buffer[0] = MAGIC;
+        buffer[1] = VERSION;
+        int position = 2;
+        position = writeVarint(buffer, position, capacity);
+        position = writeVarint(buffer, position, queueDepth);
+        position = writeVarint(buffer, position, recentLatencyMicros);
+        position = writeVarint(buffer, position, addressBytes.length);
+        System.arraycopy(addressBytes, 0, buffer, position, addressBytes.length);
+        position += addressBytes.length;
+
+        val encoded = new byte[position];
+        System.arraycopy(buffer, 0, encoded, 0, position);
+        return encoded;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the data is truncated
+     */
+    public static WorkerMetadata decode(final byte[] data) {
+        if(data.length < 2 || data[0] != MAGIC) return ofAddress(new String(data, StandardCharsets.UTF_8));
+
+        val reader = new Reader(data, 2);
+        val capacity = (int) reader.readVarint();
+        val queueDepth = (int) reader.readVarint();
+        val recentLatencyMicros = reader.readVarint();
+        val addressLength = (int) reader.readVarint();
+        if(addressLength < 0 || reader.position + addressLength > data.length) {
+            throw new IllegalArgumentException("Truncated worker metadata");
+        }
+        val address = new String(data, reader.position, addressLength, StandardCharsets.UTF_8);
+        // anything after this was added by a later version
+        return new WorkerMetadata(address, capacity, queueDepth, recentLatencyMicros);
+    }
+
+    // 7 bits at a time, lowest first, with the top bit set on every byte but the last
+    private static int writeVarint(final byte[] buffer, int position, long value) {
+        while((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private static final class Reader {
+        final byte[] data;
+        int position;
+
+        Reader(final byte[] data, final int position) {
+            this.data = data;
+            this.position = position;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7) {
+                if(position >= data.length) throw new IllegalArgumentException("Truncated worker metadata");
+                val b = data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80) == 0) return value;
+            }
+            throw new IllegalArgumentException("Malformed varint in worker metadata");
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package continuing.education.distributedsystems.zookeeper;
+
+import continuing.education.distributedsystems.metrics.LatencyHistogram;
+import lombok.AccessLevel;
+import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
+import lombok.val;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs clusters of growing size against an {@link EmbeddedZooKeeper}, every participant with its own session, its own
+ * {@link ServiceRegistryDiscovery}, and a {@link ZooKeeperElection} in which the leader unregisters and the workers
+ * register (as {@link OnElectionActon} does). For each cluster size it reports:
+ *
+ * join: how many requests the server got while the participants joined, elected a leader and built their registries.
+ * discovery convergence: from a new worker registering, until every participant's registry has it.
+ * leader failover: from the leader's session closing, until the next participant is told it's the leader.
+ * For the last two, also the requests the server got per round, which is where the herd effect would show up.
+ *
+ * Arguments are key=value pairs, all optional:
+ *   sizes=4,8,16,32 rounds=5 mode=ONE_SHOT
+ * where mode is a {@link WatchMode}.
+ *
+ * Convergence includes the registry's coalesce window, which delays each refresh by at least 50ms on purpose. The
+ * session is closed explicitly, so failover doesn't include the session timeout a crashed leader would take to notice.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public class ZooKeeperClusterBenchmark {
+
+    private static final Duration SESSION_TIMEOUT = Duration.ofSeconds(3);
+    private static final long ROUND_TIMEOUT_SECONDS = 10;
+
+    int[] sizes;
+    int rounds;
+    WatchMode watchMode;
+    Map<String, CountDownLatch> probes = new ConcurrentHashMap<>();
+    @NonFinal volatile CompletableFuture<Participant> nextLeader = new CompletableFuture<>();
+
+    public ZooKeeperClusterBenchmark(final Map<String, String> options) {
+        this.sizes = Arrays.stream(options.getOrDefault("sizes", "4,8,16,32").split(",")).mapToInt(Integer::parseInt).toArray();
+        this.rounds = Integer.parseInt(options.getOrDefault("rounds", "5"));
+        this.watchMode = WatchMode.valueOf(options.getOrDefault("mode", "ONE_SHOT").toUpperCase());
+    }
+
+    public static void main(final String[] args) throws Exception {
+        val options = new HashMap<String, String>();
+        for(val arg : args) {
+            val kvp = arg.split("=", 2);
+            options.put(kvp[0], kvp[1]);
+        }
+        new ZooKeeperClusterBenchmark(options).run();
+        System.exit(0);
+    }
+
+    public void run() throws IOException, InterruptedException, KeeperException, ExecutionException, TimeoutException {
+        System.out.printf("%s watches, %d rounds per size, times in ms%n", watchMode, rounds);
+        System.out.printf("%5s %9s | %-27s %8s | %-27s %8s%n", "nodes", "join reqs",
+                "discovery p50/p99/max", "reqs", "failover p50/p99/max", "reqs");
+        for(val size : sizes) {
+            // a fresh server for every size, so request counts and znodes don't carry over
+            try(val server = EmbeddedZooKeeper.start()) {
+                measure(server, size);
+            }
+        }
+    }
+
+    private void measure(final EmbeddedZooKeeper server, final int size) throws IOException, InterruptedException, KeeperException, ExecutionException, TimeoutException {
+        // ZooKeeper.close() throws InterruptedException, which try-with-resources would have to pass on from close()
+        val admin = server.newClient(SESSION_TIMEOUT);
+        try {
+            admin.create("/election", new byte[]{}, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+        } finally {
+            admin.close();
+        }
+
+        val startPackets = server.getPacketsReceived();
+        nextLeader = new CompletableFuture<>();
+        val participants = new ArrayList<Participant>(size);
+        for(int i = 0; i < size; i++) {
+            participants.add(new Participant(server, i));
+        }
+        Participant leader = nextLeader.get(ROUND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        val joinPackets = server.getPacketsReceived() - startPackets;
+
+        val discovery = new LatencyHistogram();
+        val discoveryPackets = server.getPacketsReceived();
+        for(int round = 0; round < rounds; round++) {
+            discovery.recordNanos(probeConvergence(server, participants, round));
+        }
+        val discoveryRequests = (server.getPacketsReceived() - discoveryPackets) / rounds;
+
+        // every round takes the leader out, so stop while there is still somebody left to take over
+        val failoverRounds = Math.min(rounds, size - 1);
+        val failover = new LatencyHistogram();
+        val failoverPackets = server.getPacketsReceived();
+        for(int round = 0; round < failoverRounds; round++) {
+            nextLeader = new CompletableFuture<>();
+            val start = System.nanoTime();
+            participants.remove(leader);
+            leader.close();
+            leader = nextLeader.get(ROUND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            // close() itself goes on tearing down the connection for a while after the session is gone
+            failover.recordNanos(leader.electedNanos - start);
+        }
+        val failoverRequests = failoverRounds == 0 ? 0 : (server.getPacketsReceived() - failoverPackets) / failoverRounds;
+
+        System.out.printf("%5d %9d | %-27s %8d | %-27s %8d%n", size, joinPackets,
+                summary(discovery), discoveryRequests, summary(failover), failoverRequests);
+
+        for(val participant : participants) participant.close();
+    }
+
+    /**
+     * @return how long it took for a newly registered address to show up in every participant's registry
+     */
+    private long probeConvergence(final EmbeddedZooKeeper server, final List<Participant> participants, final int round) throws IOException, InterruptedException, KeeperException {
+        val address = "http://probe-" + round;
+        val seen = new CountDownLatch(participants.size());
+        probes.put(address, seen);
+        val probe = server.newClient(SESSION_TIMEOUT);
+        try(val registry = new ServiceRegistryDiscovery(probe, watchMode)) {
+            val start = System.nanoTime();
+            registry.registerToCluster(address);
+            if(!seen.await(ROUND_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IllegalStateException(seen.getCount() + " participants never saw " + address);
+            }
+            return System.nanoTime() - start;
+        } finally {
+            probes.remove(address);
+            // after the registry, so it doesn't see its own session going away
+            probe.close();
+        }
+    }
+
+    private static String summary(final LatencyHistogram histogram) {
+        if(histogram.getCount() == 0) return "-";
+        return String.format("%.1f/%.1f/%.1f", histogram.getValueAtPercentile(50) / 1e3,
+                histogram.getValueAtPercentile(99) / 1e3, histogram.getMaxMicros() / 1e3);
+    }
+
+    @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+    private class Participant implements OnElectionCallback, MembershipListener, AutoCloseable {
+        String address;
+        ZooKeeper zooKeeper;
+        ServiceRegistryDiscovery registry;
+        ZooKeeperElection election;
+        @NonFinal volatile long electedNanos;
+
+        Participant(final EmbeddedZooKeeper server, final int index) throws IOException, InterruptedException, KeeperException {
+            this.address = "http://participant-" + index;
+            this.zooKeeper = server.newClient(SESSION_TIMEOUT);
+            this.registry = new ServiceRegistryDiscovery(zooKeeper, watchMode);
+            this.election = new ZooKeeperElection(this, zooKeeper, watchMode);
+            registry.addMembershipListener(this);
+            registry.getSnapshot();
+            election.volunteerForLeadership();
+            election.electLeader();
+        }
+
+        @Override
+        public void onElectedToBeLeader() {
+            electedNanos = System.nanoTime();
+            registry.unregisterFromCluster();
+            nextLeader.complete(this);
+        }
+
+        @Override
+        public void onWorker() {
+            try {
+                registry.registerToCluster(address);
+            } catch (final KeeperException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void onMembershipChanged(final Map<String, String> added, final Map<String, String> removed, final RegistrySnapshot snapshot) {
+            for(val address : added.values()) {
+                val probe = probes.get(address);
+                if(probe != null) probe.countDown();
+            }
+        }
+
+        /*
+         The election and the registry go first, so they are already ignoring the session's last events and failing
+         requests by the time it is closed, instead of printing a stack trace for each of them.
+         */
+        @Override
+        public void close() {
+            election.close();
+            registry.close();
+            try {
+                zooKeeper.close();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
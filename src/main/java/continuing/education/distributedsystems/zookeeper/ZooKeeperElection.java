@@ -1,28 +1,102 @@
 package continuing.education.distributedsystems.zookeeper;
 
+import continuing.education.distributedsystems.metrics.LatencyHistogram;
 import lombok.AccessLevel;
-import lombok.AllArgsConstructor;
+import lombok.Getter;
 import lombok.experimental.FieldDefaults;
+import lombok.experimental.NonFinal;
 import lombok.val;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static java.util.Objects.isNull;
 
-@AllArgsConstructor
+/**
+ * In {@link WatchMode#PERSISTENT} mode, one recursive watch on the election namespace stands in for the one-time
+ * {@code exists} watch on the predecessor, which would otherwise be set again at every step of the succession chain.
+ * The trade-off is that every participant is now told about every deletion under the namespace, and has to ignore
+ * the ones that aren't its predecessor. The herd still only hears about it; only the one successor acts on it.
+ *
+ * The election itself runs on its own thread, through the async API, never on the ZooKeeper event thread: the
+ * election steps and the {@link OnElectionCallback} (which goes on to talk to the service registry) would otherwise
+ * hold up every other watcher and session event of the client while they run. Each ZooKeeper call is given
+ * {@code stepTimeout}, and a failed election is retried from a fresh listing up to {@code MAX_ATTEMPTS} times, backing
+ * off in between so that a connection loss isn't burnt through in a burst of attempts. A failover that still fails is
+ * started over every {@code stepTimeout} for as long as the session lives, and at once when the connection comes back,
+ * so a successor can't be left without a round (or a watch) and never take over. How long failovers take, from the
+ * predecessor's deletion being reported to the new role being settled, is kept in {@link #getFailoverLatency()}.
+ */
 @FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
-public class ZooKeeperElection implements Watcher {
+public class ZooKeeperElection implements Watcher, AutoCloseable {
 
     private static final String ELECTION_NAMESPACE = "/election";
+    private static final Duration DEFAULT_STEP_TIMEOUT = Duration.ofSeconds(2);
+    private static final int MAX_ATTEMPTS = 5;
+    private static final Duration FIRST_BACKOFF = Duration.ofMillis(100);
+    // marks that no failed failover is waiting to be started over
+    private static final long NO_RETRY = Long.MIN_VALUE;
+
+    private enum Role {
+        LEADER,
+        WORKER
+    }
 
     OnElectionCallback callback;
     ZooKeeper zk;
+    WatchMode watchMode;
+    long stepTimeoutNanos;
     AtomicReference<String> myZNode = new AtomicReference<>();
+    AtomicReference<String> predecessorZNode = new AtomicReference<>();
+    AtomicBoolean workerCallbackDone = new AtomicBoolean();
+    ExecutorService electionThread = Executors.newSingleThreadExecutor(runnable -> {
+        val thread = new Thread(runnable, "zookeeper-election");
+        thread.setDaemon(true);
+        return thread;
+    });
+    @Getter LatencyHistogram failoverLatency = new LatencyHistogram();
+    AtomicLong lastFailoverNanos = new AtomicLong(-1);
+    // when the deletion that started the failed failover was reported, or NO_RETRY
+    AtomicLong retryDetectedNanos = new AtomicLong(NO_RETRY);
+
+    // both only ever touched on the election thread
+    @NonFinal List<String> sortedChildren;
+    @NonFinal CompletableFuture<Role> lastElection = CompletableFuture.completedFuture(null);
+
+    public ZooKeeperElection(final OnElectionCallback callback, final ZooKeeper zk) {
+        this(callback, zk, WatchMode.ONE_SHOT);
+    }
+
+    public ZooKeeperElection(final OnElectionCallback callback, final ZooKeeper zk, final WatchMode watchMode) {
+        this(callback, zk, watchMode, DEFAULT_STEP_TIMEOUT);
+    }
+
+    public ZooKeeperElection(final OnElectionCallback callback, final ZooKeeper zk, final WatchMode watchMode, final Duration stepTimeout) {
+        this.callback = callback;
+        this.zk = zk;
+        this.watchMode = watchMode;
+        this.stepTimeoutNanos = stepTimeout.toNanos();
+    }
 
     public String volunteerForLeadership() throws KeeperException, InterruptedException {
+        if(watchMode == WatchMode.PERSISTENT) {
+            // in place before our znode exists, so there is no window in which a deletion could be missed
+            zk.addWatch(ELECTION_NAMESPACE, this, AddWatchMode.PERSISTENT_RECURSIVE);
+        }
         val znodePrefix = ELECTION_NAMESPACE + "/c_";
         // 1. if we disconnect from ZK, the znode will be deleted
         // 2. the order sequence number will be appended to the znode name, depending on order of creation.
@@ -31,6 +105,118 @@ public class ZooKeeperElection implements Watcher {
         return myZNode;
     }
 
+    /**
+     * Runs the initial election and waits for its outcome. Later rounds are started by the watch on our predecessor
+     * and don't block anybody.
+     */
+    public void electLeader() throws KeeperException, InterruptedException {
+        try {
+            scheduleElection().get();
+        } catch (final ExecutionException e) {
+            if(e.getCause() instanceof KeeperException) throw (KeeperException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * @return how long the most recent failover took, or -1 if there hasn't been one
+     */
+    public long getLastFailoverNanos() {
+        return lastFailoverNanos.get();
+    }
+
+    @Override
+    public void close() {
+        electionThread.shutdownNow();
+    }
+
+    private CompletableFuture<Role> scheduleElection() {
+        val result = new CompletableFuture<Role>();
+        onElectionThread(result, () -> {
+            // rounds run strictly one after another, since they share the cached children
+            lastElection = lastElection.handle((role, error) -> null)
+                    .thenCompose(ignored -> attempt(1))
+                    .thenApplyAsync(this::announce, electionThread);
+            lastElection.whenComplete((role, error) -> {
+                if(isNull(error)) result.complete(role);
+                else result.completeExceptionally(error);
+            });
+        });
+        return result;
+    }
+
+    /*
+     Only the ZooKeeper side of the election is retried. The callback runs once the outcome is settled, outside of the
+     attempts, so a callback that throws fails the round instead of being called again with every retry.
+
+     The wait before each retry doubles, up to stepTimeout, with some jitter so that the participants that lost the
+     connection together don't all come back at the same moment.
+     */
+    private CompletableFuture<Role> attempt(final int attempt) {
+        return electionStep(false).exceptionallyComposeAsync(error -> {
+            if(attempt >= MAX_ATTEMPTS) return CompletableFuture.failedFuture(error);
+            // whatever went wrong, start the next attempt from a fresh listing
+            sortedChildren = null;
+            val backoffNanos = Math.min(stepTimeoutNanos, FIRST_BACKOFF.toNanos() << (attempt - 1));
+            val jitteredNanos = backoffNanos / 2 + ThreadLocalRandom.current().nextLong(backoffNanos / 2 + 1);
+            val afterBackoff = CompletableFuture.delayedExecutor(jitteredNanos, TimeUnit.NANOSECONDS, electionThread);
+            return CompletableFuture.supplyAsync(() -> null, afterBackoff).thenCompose(ignored -> attempt(attempt + 1));
+        }, electionThread);
+    }
+
+    private void failover(final long detectedNanos) {
+        scheduleElection().whenComplete((role, error) -> {
+            if(isNull(error)) {
+                val elapsed = System.nanoTime() - detectedNanos;
+                failoverLatency.recordNanos(elapsed);
+                lastFailoverNanos.set(elapsed);
+                return;
+            }
+            // once closed, the round failing along with the session is expected
+            if(electionThread.isShutdown()) return;
+            error.printStackTrace();
+            retryLater(detectedNanos);
+        });
+    }
+
+    /*
+     A failed failover leaves no watch behind, so nothing would ever start another round. In ONE_SHOT mode there may
+     not even be a watch left for the reconnect to be reported to, so the round isn't only started again on
+     SyncConnected, but also after stepTimeout, for as long as the session (and with it our znode) lives.
+     */
+    private void retryLater(final long detectedNanos) {
+        if(!zk.getState().isAlive()) return;
+        retryDetectedNanos.set(detectedNanos);
+        CompletableFuture.delayedExecutor(stepTimeoutNanos, TimeUnit.NANOSECONDS, electionThread).execute(this::retryNow);
+    }
+
+    // whichever of the reconnect and the delay comes first starts the round, the other finds nothing to do
+    private void retryNow() {
+        val detectedNanos = retryDetectedNanos.getAndSet(NO_RETRY);
+        if(detectedNanos != NO_RETRY) failover(detectedNanos);
+    }
+
+    private void onElectionThread(final CompletableFuture<?> result, final Runnable task) {
+        try {
+            electionThread.execute(task);
+        } catch (final RejectedExecutionException e) {
+            // closed in the meantime
+            result.completeExceptionally(e);
+        }
+    }
+
+    private Role announce(final Role role) {
+        if(role == Role.LEADER) {
+            System.out.println("I am the leader");
+            callback.onElectedToBeLeader();
+        } else {
+            System.out.println("I am not the leader");
+            // the role only needs announcing once, not every time the predecessor changes
+            if(workerCallbackDone.compareAndSet(false, true)) callback.onWorker();
+        }
+        return role;
+    }
+
     /*
      When new leader election needs to happen, we want to avoid the "Herd Effect" wherein all subscribed nodes attempt
      to become the leader at once, when they are all notified that the leader node has failed. If many nodes are subscribed,
@@ -40,51 +226,95 @@ public class ZooKeeperElection implements Watcher {
      Instead, there should be a succession chain, wherein leadership is passed down according to znode election order,
      IE, the first node to register is the leader, the second node to register will be the leader if the first node fails,
      and so on.
+
+     The sorted children are only fetched once and then kept. Sequence numbers only ever go up, so no znode can ever
+     appear *ahead* of ours in the chain; the ones ahead of us can only go away. When our predecessor goes, the next one
+     up the cached chain is the new candidate, and finding it needs no new listing or sort. If we run out of
+     predecessors, every znode ahead of us is known to be gone, and we are the leader.
      */
-    public void electLeader() throws KeeperException, InterruptedException {
-        Stat predecessorStat;
-        do {
-            val children = zk.getChildren(ELECTION_NAMESPACE, false);
-            Collections.sort(children);
-            val amLeader = myZNode.get().endsWith(children.get(0));
-            if(amLeader) {
-                System.out.println("I am the leader");
-                callback.onElectedToBeLeader();
-                return;
-            } else {
-                // if not elected leader, then set up subscription to the (myZNode - 1) zNode, so that if (zNode - 1) fails,
-                // we are notified, and can update our succession chain.
-                System.out.println("I am not the leader");
-                val predecessorIndex = Collections.binarySearch(children, myZNode.get().replace(ELECTION_NAMESPACE + "/", "")) - 1;
-                val predecessorZNodeName = children.get(predecessorIndex);
-                // There is a race condition here, because we are operating on the `children` that were returned from the
-                // `getChildren` call, but what if one of those children went down after the call completed?
-                // then, instead of getting back the intended predecessor znode, we would be getting back `null` here.
-
-                // as such, we need to run in a while loop until we get back a non null predecessor
-                // THIS IS WHERE THE PREDECESSOR IN THE CHAIN IS SELECTED.
-                // the selection mechanism goes back to the fact that when the `exists` method is called, our
-                // Watcher is registered as a one time event handler for any events associated to the ZNode
-                // it is registered to.
-
-                // Remember, the method will only run if the caller that has registered this znode gets an event,
-                // and not for all znodes that register with ZK
-                predecessorStat = zk.exists(ELECTION_NAMESPACE + "/" + predecessorZNodeName, this);
+    private CompletableFuture<Role> electionStep(final boolean fromFreshListing) {
+        if(isNull(sortedChildren)) {
+            return getChildren(ELECTION_NAMESPACE).thenComposeAsync(children -> {
+                Collections.sort(children);
+                sortedChildren = children;
+                return electionStep(true);
+            }, electionThread);
+        }
+
+        val myZNodeName = myZNode.get().replace(ELECTION_NAMESPACE + "/", "");
+        val myIndex = Collections.binarySearch(sortedChildren, myZNodeName);
+        if(myIndex < 0) {
+            // our own znode isn't listed: the cache is out of date, or our session (and with it our znode) is gone
+            if(fromFreshListing) return CompletableFuture.failedFuture(new IllegalStateException(myZNode.get() + " no longer exists"));
+            sortedChildren = null;
+            return electionStep(false);
+        }
+
+        if(myIndex == 0) return CompletableFuture.completedFuture(Role.LEADER);
+
+        // if not elected leader, then set up subscription to the (myZNode - 1) zNode, so that if (zNode - 1) fails,
+        // we are notified, and can update our succession chain.
+        val predecessorZNodeName = sortedChildren.get(myIndex - 1);
+        val predecessorPath = ELECTION_NAMESPACE + "/" + predecessorZNodeName;
+        predecessorZNode.set(predecessorPath);
+
+        // THIS IS WHERE THE PREDECESSOR IN THE CHAIN IS SELECTED.
+        // the selection mechanism goes back to the fact that when the `exists` method is called, our
+        // Watcher is registered as a one time event handler for any events associated to the ZNode
+        // it is registered to. With a persistent watch the deletion will be reported anyway, so no watch is set.
+        return exists(predecessorPath, watchMode == WatchMode.ONE_SHOT ? this : null).thenComposeAsync(predecessorStat -> {
+            // There is a race condition here, because the predecessor may have gone down since the listing.
+            // If so, drop it from the chain and try the one ahead of it.
+            if(isNull(predecessorStat)) {
+                sortedChildren.remove(predecessorZNodeName);
+                return electionStep(fromFreshListing);
             }
-        } while(isNull(predecessorStat));
+            return CompletableFuture.completedFuture(Role.WORKER);
+        }, electionThread);
+    }
 
-        callback.onWorker();
+    private CompletableFuture<List<String>> getChildren(final String path) {
+        val future = new CompletableFuture<List<String>>();
+        zk.getChildren(path, false, (rc, p, ctx, children) -> {
+            val code = KeeperException.Code.get(rc);
+            if(code == KeeperException.Code.OK) future.complete(new ArrayList<>(children));
+            else future.completeExceptionally(KeeperException.create(code, p));
+        }, null);
+        return future.orTimeout(stepTimeoutNanos, TimeUnit.NANOSECONDS);
     }
 
+    /**
+     * @return a future of the znode's Stat, or of null if the znode doesn't exist
+     */
+    private CompletableFuture<Stat> exists(final String path, final Watcher watcher) {
+        val future = new CompletableFuture<Stat>();
+        zk.exists(path, watcher, (rc, p, ctx, stat) -> {
+            val code = KeeperException.Code.get(rc);
+            if(code == KeeperException.Code.OK || code == KeeperException.Code.NONODE) future.complete(stat);
+            else future.completeExceptionally(KeeperException.create(code, p));
+        }, null);
+        return future.orTimeout(stepTimeoutNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     Runs on the ZooKeeper event thread, so all it does is hand the work over to the election thread. The failover
+     time measured here starts when the deletion reaches us; the time ZooKeeper itself took to notice a crashed
+     predecessor (up to its session timeout) comes on top of that.
+     */
     @Override
     public void process(final WatchedEvent event) {
+        if(electionThread.isShutdown()) return;
         switch (event.getType()) {
-            case NodeDeleted:
-                try {
-                    electLeader();
-                } catch (final KeeperException | InterruptedException e) {
-                    e.printStackTrace();
+            case None:
+                // a failover that failed while the connection was away needn't wait out its retry delay
+                if(event.getState() == Event.KeeperState.SyncConnected) {
+                    onElectionThread(new CompletableFuture<>(), this::retryNow);
                 }
+                return;
+            case NodeDeleted:
+                // the persistent watch reports every deletion in the namespace, only our predecessor's matters
+                if(watchMode == WatchMode.PERSISTENT && !event.getPath().equals(predecessorZNode.get())) return;
+                failover(System.nanoTime());
         }
     }
 }
@@ -7,6 +7,7 @@ import lombok.val;
 import org.apache.zookeeper.*;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 
 /**
  * use the zkCli.sh script to communicate with the zookeeper server over command line.
@@ -22,7 +23,11 @@ import java.io.IOException;
  *
  * ZK uses log4j
  *
+ * Pass PERSISTENT as the first argument to use persistent watches (see {@link WatchMode}) instead of one-shot ones.
  *
+ * An expired session takes this node's election znode and registration with it. Which role it comes back in is up to
+ * a new election, so rather than letting the registry register it again on its own (see
+ * {@link ServiceRegistryDiscovery.SessionFactory}), the node joins again from scratch on a new session.
  */
 
 @FieldDefaults(level = AccessLevel.PRIVATE)
@@ -32,27 +37,61 @@ public class ZooKeeperThreadingModelExample implements Watcher {
 
     @Setter
     ZooKeeper zooKeeper;
+    final WatchMode watchMode;
+    boolean persistentWatchAdded;
+    // guarded by zooKeeper, like the wait for the session to end
+    boolean expired;
 
-    public static void main(final String[] args) throws InterruptedException, KeeperException, IOException {
-
-        val threadingModel = new ZooKeeperThreadingModelExample();
-        val zk = new ZooKeeper(ZK_ADDY, SESSION_TIMEOUT, threadingModel);
-        threadingModel.setZooKeeper(zk);
+    public ZooKeeperThreadingModelExample(final WatchMode watchMode) {
+        this.watchMode = watchMode;
+    }
 
-        val service = new ServiceRegistryDiscovery(zk);
-        val onElection = new OnElectionActon(service, 8080);
-        val elector = new ZooKeeperElection(onElection, zk);
+    public static void main(final String[] args) throws InterruptedException, KeeperException, IOException {
+        val watchMode = args.length > 0 ? WatchMode.valueOf(args[0]) : WatchMode.ONE_SHOT;
+
+        while(true) {
+            val threadingModel = new ZooKeeperThreadingModelExample(watchMode);
+            val zk = new ZooKeeper(ZK_ADDY, SESSION_TIMEOUT, threadingModel);
+            threadingModel.setZooKeeper(zk);
+
+            try(val service = new ServiceRegistryDiscovery(zk, watchMode);
+                val onElection = new OnElectionActon(service, 8080, ZooKeeperThreadingModelExample::machineLoad);
+                val elector = new ZooKeeperElection(onElection, zk, watchMode)) {
+                val myZNode = elector.volunteerForLeadership();
+                elector.electLeader();
+                threadingModel.watchTargetZNode();
+                threadingModel.run();
+            }
+            threadingModel.close();
+            if(!threadingModel.isExpired()) return;
+            System.out.println("Joining again on a new session");
+        }
+    }
 
-        val myZNode = elector.volunteerForLeadership();
-        elector.electLeader();
-        threadingModel.watchTargetZNode();
-        threadingModel.run();
-        threadingModel.close();
+    /*
+     This example has no task server of its own to count the queue of, so the machine's run queue (its load average)
+     stands in for it, with one slot per processor.
+     */
+    private static WorkerMetadata machineLoad(final String address) {
+        val loadAverage = ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage();
+        val queueDepth = loadAverage < 0 ? 0 : (int) Math.round(loadAverage); // negative where it isn't available
+        return new WorkerMetadata(address, Runtime.getRuntime().availableProcessors(), queueDepth, 0);
     }
 
+    /**
+     * Waits for the session to end, by expiring or being closed.
+     */
     public void run() throws InterruptedException {
         synchronized (zooKeeper) {
-            zooKeeper.wait();
+            while(zooKeeper.getState().isAlive() && !expired) {
+                zooKeeper.wait();
+            }
+        }
+    }
+
+    public boolean isExpired() {
+        synchronized (zooKeeper) {
+            return expired;
         }
     }
 
@@ -63,14 +102,25 @@ public class ZooKeeperThreadingModelExample implements Watcher {
     /**
      * When we register a {@code Watcher} with {@code ZooKeeper::exists}, {@code ZooKeeper::getChildren}, or {@code ZooKeeper::getData},
      * we get a one-time trigger that will be invoked on that {@code Watcher}
+     *
+     * With {@code ZooKeeper::addWatch} in {@code AddWatchMode.PERSISTENT} mode, the same events (creation, deletion,
+     * data and children changes of the znode) keep coming until the watch is removed, so it is only added once, and
+     * the reads below don't set any watches of their own.
      */
     public void watchTargetZNode() throws KeeperException, InterruptedException {
         val targetZNode = "/target_znode";
-        val stat = zooKeeper.exists(targetZNode, this);
+        if(watchMode == WatchMode.PERSISTENT && !persistentWatchAdded) {
+            // works even if the znode doesn't exist yet, in which case its creation is reported
+            zooKeeper.addWatch(targetZNode, this, AddWatchMode.PERSISTENT);
+            persistentWatchAdded = true;
+        }
+        final Watcher oneShot = watchMode == WatchMode.ONE_SHOT ? this : null;
+
+        val stat = zooKeeper.exists(targetZNode, oneShot);
         if(stat == null) return; // is znode does not exist, then null is returned
 
-        val data = zooKeeper.getData(targetZNode, this, stat);
-        val children = zooKeeper.getChildren(targetZNode, this);
+        val data = zooKeeper.getData(targetZNode, oneShot, stat);
+        val children = zooKeeper.getChildren(targetZNode, oneShot);
 
         System.out.println("data: " + new String(data) + " children: " + children);
 
@@ -79,7 +129,8 @@ public class ZooKeeperThreadingModelExample implements Watcher {
 
          create /target_znode "test data"
 
-        remember that this method will only run once. You have to re-register every time you want this method to run.
+        remember that this method will only run once. You have to re-register every time you want this method to run
+        (unless the watch is persistent).
 
          */
     }
@@ -92,14 +143,25 @@ public class ZooKeeperThreadingModelExample implements Watcher {
     public void process(final WatchedEvent event) {
         switch (event.getType()) {
             case None: //zk connection events don't have a type
-                if(event.getState() == Event.KeeperState.SyncConnected) {
-                    // this state means successful connection to zk server
-                    System.out.println("connected to ZK server");
-                } else { // if zookeeper sends a disconnect event, it will be handled here.
-                    synchronized (zooKeeper) {
-                        System.out.println("Disconnect from ZK server");
-                        zooKeeper.notifyAll();
-                    }
+                switch (event.getState()) {
+                    case SyncConnected:
+                        // this state means successful connection to zk server
+                        System.out.println("connected to ZK server");
+                        break;
+                    case Disconnected:
+                        // the client keeps trying to reconnect, and as long as it does so within the session timeout,
+                        // the session, its ephemeral znodes and its watches all survive. Nothing to do but wait.
+                        System.out.println("Disconnected from ZK server, reconnecting");
+                        return;
+                    case Expired:
+                    case Closed:
+                        // the session (and everything that went with it) is gone for good, this client is done.
+                        synchronized (zooKeeper) {
+                            System.out.println("ZK session " + event.getState());
+                            if(event.getState() == Event.KeeperState.Expired) expired = true;
+                            zooKeeper.notifyAll();
+                        }
+                        return;
                 }
                 break;
             case NodeDeleted:
@@ -2,7 +2,6 @@ package continuing.education.javareflection;
 
 import lombok.AllArgsConstructor;
 
-import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 
 /**
@@ -15,6 +14,8 @@ import java.lang.reflect.Modifier;
  * Synthetic fields are fields generated by the java compiler for its internal usage. We would stumble upon these at runtime
  * if we are using reflection. These are specific to the compiler, and rarely of use to the developer.
  * Can be checked with the Field.isSynthetic() method.
+ *
+ * The lookups themselves go through {@link ClassMetadata}, which does them once per class.
  */
 public class AboutFields {
 
@@ -33,14 +34,14 @@ public class AboutFields {
          * definition itself. If you are trying to get the value of a static field, you can pass `null` to this
          * method, and it will still work.
          */
-        Field staticMovieField = Movie.class.getDeclaredField("MIN_PRICE");
+        FieldMetadata staticMovieField = ClassMetadata.of(Movie.class).getField("MIN_PRICE");
 
         System.out.println(staticMovieField.get(null));
     }
 
     public static <T> void printDeclaredFields(Class<? extends T> clz, T instance) throws IllegalAccessException {
         System.out.println(clz.getName());
-        for(Field field : clz.getDeclaredFields()) {
+        for(FieldMetadata field : ClassMetadata.of(clz).getFields()) {
             System.out.println(field.getName());
             int mod = field.getModifiers();
             System.out.println("abstract " + Modifier.isAbstract(mod));
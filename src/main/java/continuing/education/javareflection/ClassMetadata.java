@@ -0,0 +1,90 @@
+package continuing.education.javareflection;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The declared fields of a class, looked up and sorted out once, and then shared by every utility in this package.
+ *
+ * {@code Class.getDeclaredFields()} hands back a fresh copy of the {@code Field} array on every call, and
+ * {@code Field.get} / {@code Field.set} go through the access checks every time, so walking an object graph or
+ * parsing a config file that way repeats the same work for every object and every line. Here, all of that happens the
+ * first time a class is asked about, and the result is kept in a {@link ClassValue}: a per-class slot the JVM keeps
+ * alongside the class itself, which is cheaper to look up than a map. The cached metadata holds on to the class, its
+ * {@code Field}s and the MethodHandles made from them, so a class looked up here stays loaded. Don't use it for classes
+ * that are meant to be unloaded again, like those of a plugin's own class loader.
+ *
+ * Fields are in the order {@code getDeclaredFields()} gives them, which in practice is declaration order. As there,
+ * inherited fields aren't included.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public final class ClassMetadata {
+
+    private static final ClassValue<ClassMetadata> CACHE = new ClassValue<>() {
+        @Override
+        protected ClassMetadata computeValue(final Class<?> type) {
+            return new ClassMetadata(type);
+        }
+    };
+
+    @Getter Class<?> type;
+    // every declared field, synthetic ones included
+    @Getter List<FieldMetadata> fields;
+    // what the compiler generated (like an inner class' this$0, or an enum's $VALUES) left out, statics kept
+    @Getter List<FieldMetadata> nonSyntheticFields;
+    @Getter List<FieldMetadata> instanceFields;
+    @Getter List<FieldMetadata> staticFields;
+    Map<String, FieldMetadata> fieldsByName;
+
+    private ClassMetadata(final Class<?> type) {
+        this.type = type;
+
+        val fields = new ArrayList<FieldMetadata>();
+        val nonSyntheticFields = new ArrayList<FieldMetadata>();
+        val instanceFields = new ArrayList<FieldMetadata>();
+        val staticFields = new ArrayList<FieldMetadata>();
+        val fieldsByName = new HashMap<String, FieldMetadata>();
+        for(val declared : type.getDeclaredFields()) {
+            val field = new FieldMetadata(declared);
+            fields.add(field);
+            fieldsByName.put(field.getName(), field);
+            if(field.isSynthetic()) continue;
+            nonSyntheticFields.add(field);
+            if(field.isStatic()) staticFields.add(field);
+            else instanceFields.add(field);
+        }
+
+        this.fields = List.copyOf(fields);
+        this.nonSyntheticFields = List.copyOf(nonSyntheticFields);
+        this.instanceFields = List.copyOf(instanceFields);
+        this.staticFields = List.copyOf(staticFields);
+        this.fieldsByName = Map.copyOf(fieldsByName);
+    }
+
+    public static ClassMetadata of(final Class<?> type) {
+        return CACHE.get(type);
+    }
+
+    /**
+     * @return the declared field, or null if there is none by that name
+     */
+    public FieldMetadata findField(final String name) {
+        return fieldsByName.get(name);
+    }
+
+    /**
+     * Like {@code Class.getDeclaredField(name)}.
+     */
+    public FieldMetadata getField(final String name) throws NoSuchFieldException {
+        val field = fieldsByName.get(name);
+        if(field == null) throw new NoSuchFieldException(name);
+        return field;
+    }
+}
@@ -53,18 +53,18 @@ public class ConfigFileParserForArrays {
         while(scanner.hasNextLine()) {
             val kvp = scanner.nextLine().split("=");
 
-            try {
-                val field = type.getDeclaredField(kvp[0]);
-                field.setAccessible(true);
-
-                val fieldType = field.getType();
-                if(fieldType.isArray()) {
-                    field.set(newInstance, parseArray(fieldType.getComponentType(), kvp[1]));
-                } else {
-                    field.set(newInstance, parseValue(fieldType, kvp[1]));
-                }
-            } catch (final NoSuchFieldException ex) { // if the field is undefined, swallow exception and continue
+            // looked up once per class, not once per line
+            val field = ClassMetadata.of(type).findField(kvp[0]);
+            if(field == null) { // if the field is undefined, skip it and continue
                 System.err.println("property undefined: " + kvp[0]);
+                continue;
+            }
+
+            val fieldType = field.getType();
+            if(fieldType.isArray()) {
+                field.set(newInstance, parseArray(fieldType.getComponentType(), kvp[1]));
+            } else {
+                field.set(newInstance, parseValue(fieldType, kvp[1]));
             }
         }
 
@@ -3,7 +3,6 @@ package continuing.education.javareflection;
 import lombok.val;
 
 import java.lang.reflect.Array;
-import java.lang.reflect.Field;
 
 import static continuing.education.models.Models.*;
 
@@ -28,29 +27,28 @@ public class DIYJSONSerializer {
     public static String toJson(final Object obj) throws IllegalAccessException {
         val sb = new StringBuilder("{");
 
-        val fields = obj.getClass().getDeclaredFields();
+        // synthetic fields are already filtered out, so the last one here is the last one written
+        val fields = ClassMetadata.of(obj.getClass()).getNonSyntheticFields();
 
-        for(int i = 0; i < fields.length; i++) {
-            if(fields[i].isSynthetic()) continue;
+        for(int i = 0; i < fields.size(); i++) {
+            val field = fields.get(i);
+            sb.append(wrapWithQuotes(field.getName())).append(":");
 
-            fields[i].setAccessible(true);
-
-            sb.append(wrapWithQuotes(fields[i].getName())).append(":");
-
-            val type = fields[i].getType();
-            if(fields[i].get(obj) == null) {
+            val type = field.getType();
+            val value = field.get(obj);
+            if(value == null) {
                 sb.append("null");
             } else if(type.isPrimitive()) {
-                sb.append(primitiveToString(fields[i].get(obj)));
+                sb.append(primitiveToString(value));
             } else if(type.equals(String.class)) {
-                sb.append(wrapWithQuotes(fields[i].get(obj).toString()));
+                sb.append(wrapWithQuotes(value.toString()));
             } else if(type.isArray()) {
-                sb.append(arrayToJson(fields[i].get(obj)));
+                sb.append(arrayToJson(value));
             } else {
-                sb.append(toJson(fields[i].get(obj)));
+                sb.append(toJson(value));
             }
 
-            if(i != fields.length - 1) {
+            if(i != fields.size() - 1) {
                 sb.append(",");
             }
         }
@@ -90,7 +88,7 @@ public class DIYJSONSerializer {
         return instance.toString();
     }
 
-    private static String primitiveToString(Field field, Object instance) throws IllegalAccessException {
+    private static String primitiveToString(FieldMetadata field, Object instance) throws IllegalAccessException {
         val type = field.getType();
         val obj = field.get(instance);
         if(type.equals(double.class) || type.equals(float.class)) return String.format("%.02f", obj);
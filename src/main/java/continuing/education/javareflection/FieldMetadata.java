@@ -0,0 +1,140 @@
+package continuing.education.javareflection;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.experimental.FieldDefaults;
+import lombok.val;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Everything about a declared field that the reflection utilities keep asking for, worked out once (see
+ * {@link ClassMetadata}).
+ *
+ * Values are read and written through MethodHandles made when the metadata is built, with {@code setAccessible} done
+ * once beforehand. A handle checks access when it is made rather than on every call like {@code Field.get} does, and
+ * static and instance fields alike take the same {@code (Object)Object} and {@code (Object, Object)void} shapes, so
+ * callers don't have to care which one they have. Static fields ignore the instance passed in.
+ */
+@FieldDefaults(makeFinal = true, level = AccessLevel.PRIVATE)
+public final class FieldMetadata {
+
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    // for anything not covered here, like annotations or generic types
+    @Getter Field field;
+    @Getter String name;
+    @Getter Class<?> type;
+    @Getter int modifiers;
+    @Getter boolean synthetic;
+    // null if the field can't be made accessible (a JDK class in a module that isn't open to us)
+    MethodHandle getter;
+    // null for static final fields too, which can't be written at all
+    MethodHandle setter;
+
+    FieldMetadata(final Field field) {
+        this.field = field;
+        this.name = field.getName();
+        this.type = field.getType();
+        this.modifiers = field.getModifiers();
+        this.synthetic = field.isSynthetic();
+        this.getter = getterFor(field);
+        this.setter = setterFor(field);
+    }
+
+    public boolean isStatic() {
+        return Modifier.isStatic(modifiers);
+    }
+
+    public boolean isFinal() {
+        return Modifier.isFinal(modifiers);
+    }
+
+    public boolean isTransient() {
+        return Modifier.isTransient(modifiers);
+    }
+
+    /**
+     * @return true for the reference an inner (non-static nested) class holds to its enclosing instance, which the
+     * compiler names this$0 (this$1 for the next level out and so on)
+     */
+    public boolean isOuterInstance() {
+        return synthetic && name.startsWith("this$");
+    }
+
+    /**
+     * @param instance ignored for static fields
+     */
+    public Object get(final Object instance) throws IllegalAccessException {
+        if(getter == null) throw new IllegalAccessException("Can't read " + field);
+        try {
+            return getter.invokeExact(instance);
+        } catch (final RuntimeException | Error e) {
+            throw e;
+        } catch (final Throwable e) {
+            // reading a field doesn't throw checked exceptions
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param instance ignored for static fields
+     * @throws IllegalArgumentException if the value isn't of the field's type, as with {@code Field.set}
+     */
+    public void set(final Object instance, final Object value) throws IllegalAccessException {
+        if(setter == null) throw new IllegalAccessException("Can't write " + field);
+        try {
+            setter.invokeExact(instance, value);
+        } catch (final ClassCastException e) {
+            throw new IllegalArgumentException(String.format("Can't set %s to %s", field, value), e);
+        } catch (final RuntimeException | Error e) {
+            throw e;
+        } catch (final Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return field.toString();
+    }
+
+    private static MethodHandle getterFor(final Field field) {
+        if(!makeAccessible(field)) return null;
+        try {
+            val getter = MethodHandles.lookup().unreflectGetter(field);
+            return Modifier.isStatic(field.getModifiers())
+                    ? MethodHandles.dropArguments(getter.asType(MethodType.methodType(Object.class)), 0, Object.class)
+                    : getter.asType(GETTER_TYPE);
+        } catch (final IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static MethodHandle setterFor(final Field field) {
+        if(Modifier.isStatic(field.getModifiers()) && Modifier.isFinal(field.getModifiers())) return null;
+        if(!makeAccessible(field)) return null;
+        try {
+            val setter = MethodHandles.lookup().unreflectSetter(field);
+            return Modifier.isStatic(field.getModifiers())
+                    ? MethodHandles.dropArguments(setter.asType(MethodType.methodType(void.class, Object.class)), 0, Object.class)
+                    : setter.asType(SETTER_TYPE);
+        } catch (final IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    private static boolean makeAccessible(final Field field) {
+        try {
+            field.setAccessible(true);
+            return true;
+        } catch (final RuntimeException e) { // InaccessibleObjectException or SecurityException
+            return false;
+        }
+    }
+}
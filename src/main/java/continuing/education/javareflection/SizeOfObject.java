@@ -2,8 +2,6 @@ package continuing.education.javareflection;
 
 import lombok.val;
 
-import java.lang.reflect.Field;
-import java.util.Arrays;
 
 public class SizeOfObject {
 
@@ -11,8 +9,7 @@ public class SizeOfObject {
     private static final long REFERENCE_SIZE = 4;
 
     public long sizeOfObject(final Object input) {
-        return HEADER_SIZE + REFERENCE_SIZE + Arrays.stream(input.getClass().getDeclaredFields())
-                .filter(field -> !field.isSynthetic())
+        return HEADER_SIZE + REFERENCE_SIZE + ClassMetadata.of(input.getClass()).getNonSyntheticFields().stream()
                 .map(field -> {
                     val type = field.getType();
                     val instance = retreive(field, input);
@@ -26,9 +23,8 @@ public class SizeOfObject {
                 }).reduce(0l, Long::sum);
     }
 
-    private Object retreive(final Field field, final Object object) {
+    private Object retreive(final FieldMetadata field, final Object object) {
         try{
-            field.setAccessible(true);
             return field.get(object);
         } catch (IllegalAccessException ex) {
             throw new RuntimeException(ex);
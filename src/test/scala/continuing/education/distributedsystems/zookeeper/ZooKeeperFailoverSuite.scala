@@ -0,0 +1,95 @@
+package continuing.education.distributedsystems.zookeeper
+
+import java.time.Duration
+import java.util.concurrent.{CompletableFuture, TimeUnit}
+
+import org.apache.zookeeper.{CreateMode, ZooDefs}
+import org.junit.runner.RunWith
+import org.scalatest.concurrent.Eventually
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.time.{Seconds, Span}
+import org.scalatestplus.junit.JUnitRunner
+
+/*
+ * Failover and discovery against an EmbeddedZooKeeper, in both watch modes. The bounds are generous: they are there to
+ * catch a successor that never takes over, or a registry that never catches up, not to time them. Timing is what
+ * ZooKeeperClusterBenchmark is for.
+ */
+@RunWith(classOf[JUnitRunner])
+class ZooKeeperFailoverSuite extends AnyFunSuite with Eventually {
+
+  private val sessionTimeout = Duration.ofSeconds(2)
+
+  implicit override val patienceConfig: PatienceConfig = PatienceConfig(timeout = scaled(Span(10, Seconds)))
+
+  private class Callback extends OnElectionCallback {
+    val elected = new CompletableFuture[Unit]()
+
+    override def onElectedToBeLeader(): Unit = elected.complete(())
+
+    override def onWorker(): Unit = ()
+  }
+
+  for (watchMode <- WatchMode.values()) {
+    test(s"the successor takes over when the leader's session ends ($watchMode)") {
+      withServer { server =>
+        val leaderZk = server.newClient(sessionTimeout)
+        val successorZk = server.newClient(sessionTimeout)
+        leaderZk.create("/election", Array.emptyByteArray, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT)
+        val leader = new Callback
+        val successor = new Callback
+        val leaderElection = new ZooKeeperElection(leader, leaderZk, watchMode)
+        val successorElection = new ZooKeeperElection(successor, successorZk, watchMode)
+        try {
+          leaderElection.volunteerForLeadership()
+          leaderElection.electLeader()
+          successorElection.volunteerForLeadership()
+          successorElection.electLeader()
+          assert(leader.elected.isDone)
+          assert(!successor.elected.isDone)
+
+          leaderElection.close()
+          leaderZk.close()
+          successor.elected.get(10, TimeUnit.SECONDS)
+          assert(successorElection.getLastFailoverNanos >= 0)
+        } finally {
+          successorElection.close()
+          successorZk.close()
+        }
+      }
+    }
+
+    test(s"discovery converges on the registered workers ($watchMode)") {
+      withServer { server =>
+        val zk = server.newClient(sessionTimeout)
+        val workerZk = server.newClient(sessionTimeout)
+        val discovery = new ServiceRegistryDiscovery(zk, watchMode)
+        val worker = new ServiceRegistryDiscovery(workerZk, watchMode)
+        try {
+          assert(discovery.getAllServiceAddresses().isEmpty)
+
+          worker.registerToCluster("http://127.0.0.1:8081")
+          eventually {
+            assert(discovery.getAllServiceAddresses().contains("http://127.0.0.1:8081"))
+          }
+
+          // the registration is ephemeral, and goes with the worker's session
+          worker.close()
+          workerZk.close()
+          eventually {
+            assert(discovery.getAllServiceAddresses().isEmpty)
+          }
+        } finally {
+          discovery.close()
+          zk.close()
+        }
+      }
+    }
+  }
+
+  private def withServer(body: EmbeddedZooKeeper => Unit): Unit = {
+    val server = EmbeddedZooKeeper.start()
+    try body(server)
+    finally server.close()
+  }
+}